@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import hudson.Util;
+import hudson.util.VersionNumber;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Benchmarks for the stages of {@link PluginHelper#refresh()} against synthetic plugin sets. A full refresh needs a
+ * running Jenkins, so each stage is driven directly with local stand-ins for the plugin manager (an
+ * {@link InstalledPlugins} snapshot) and the filters. File based plugins always have a short name in their file
+ * name, so no {@link hudson.PluginStrategy} is needed for staging.
+ * <p>
+ * Run with {@code mvn -Pbenchmarks verify}, add {@code -Djmh.args="-prof gc"} to report allocation rates.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ActivationBenchmark {
+    /**
+     * The number of synthetic plugins.
+     */
+    @Param({"50", "500", "2000"})
+    public int count;
+
+    /**
+     * The number of dependencies of each plugin outside the first layer.
+     */
+    @Param({"3"})
+    public int fanOut;
+
+    /**
+     * The number of dependency layers.
+     */
+    @Param({"5"})
+    public int depth;
+
+    /**
+     * The size of the payload of each plugin in bytes.
+     */
+    @Param({"65536"})
+    public int payloadSize;
+
+    /**
+     * Where the synthetic plugins and staging areas live.
+     */
+    private File workDir;
+
+    /**
+     * The synthetic plugins.
+     */
+    private List<URL> sources;
+
+    /**
+     * The staging area that is reused by the warm cache benchmarks.
+     */
+    private File warmStagingDir;
+
+    /**
+     * The helper whose staging cache is warm.
+     */
+    private PluginHelper warmHelper;
+
+    /**
+     * The manifests of the staged plugins.
+     */
+    private List<PluginManifest> manifests;
+
+    /**
+     * The stand-in filters.
+     */
+    private List<PluginWrapperFilter> filters;
+
+    /**
+     * The stand-in for the installed plugins.
+     */
+    private InstalledPlugins installed;
+
+    /**
+     * Generates the plugins and warms the staging cache.
+     *
+     * @throws IOException if the plugins could not be generated.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = File.createTempFile("optional-plugins", ".bench");
+        Util.deleteFile(workDir);
+        sources = SyntheticPlugins.generate(new File(workDir, "sources"), count, fanOut, depth, payloadSize);
+        warmStagingDir = new File(workDir, "warm");
+        if (!warmStagingDir.mkdirs()) {
+            throw new IOException("Could not create " + warmStagingDir);
+        }
+        warmHelper = new PluginHelper();
+        manifests = new ArrayList<PluginManifest>(
+                warmHelper.stageAll(sources, warmStagingDir, null, new AtomicBoolean()).values());
+        filters = Arrays.<PluginWrapperFilter>asList(new EveryNth(10, PluginWrapperFilter.Decision.INCLUDE),
+                new EveryNth(7, PluginWrapperFilter.Decision.EXCLUDE));
+        // a handful of older versions already installed, as a plugin manager would report them
+        List<InstalledPlugins.Plugin> plugins = new ArrayList<InstalledPlugins.Plugin>();
+        for (int i = 0; i < count; i += 25) {
+            plugins.add(new InstalledPlugins.Plugin(SyntheticPlugins.shortName(i), "0.9", new VersionNumber("0.9"),
+                    true, true, false));
+        }
+        installed = InstalledPlugins.of(plugins);
+    }
+
+    /**
+     * Removes the generated files.
+     *
+     * @throws IOException if the files could not be removed.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Util.deleteRecursive(workDir);
+    }
+
+    /**
+     * Stages every plugin into an empty staging area.
+     *
+     * @param cold the empty staging area.
+     * @return the staged manifests.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<String, PluginManifest> stagingCold(ColdStaging cold) {
+        return new PluginHelper().stageAll(sources, cold.stagingDir, null, new AtomicBoolean());
+    }
+
+    /**
+     * Stages every plugin when they have all been staged and verified already.
+     *
+     * @return the staged manifests.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Map<String, PluginManifest> stagingWarm() {
+        return warmHelper.stageAll(sources, warmStagingDir, null, new AtomicBoolean());
+    }
+
+    /**
+     * Lists the plugins of a source.
+     *
+     * @return the plugins.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<URL> enumeration() {
+        return PluginSource.listPluginsOf(new PluginSource() {
+            @Nonnull
+            @Override
+            public List<URL> listPlugins() {
+                return Collections.unmodifiableList(sources);
+            }
+        });
+    }
+
+    /**
+     * Evaluates the filters without any cached decisions.
+     *
+     * @return the decisions.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Map<PluginManifest, PluginWrapperFilter.Decision> filteringCold() {
+        PluginWrapperFilter.invalidateDecisions();
+        return PluginWrapperFilter.decideAll(filters, manifests);
+    }
+
+    /**
+     * Evaluates the filters with every decision cached.
+     *
+     * @return the decisions.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public Map<PluginManifest, PluginWrapperFilter.Decision> filteringWarm() {
+        return PluginWrapperFilter.decideAll(filters, manifests);
+    }
+
+    /**
+     * Resolves the dependencies of every plugin and sorts them into load order.
+     *
+     * @return the load order.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public List<PluginManifest> resolution() {
+        final DependencyGraph graph = DependencyGraph.build(manifests);
+        final List<PluginManifest> roots = new ArrayList<PluginManifest>();
+        for (int i = 0; i < manifests.size(); i += 10) {
+            roots.add(manifests.get(i));
+        }
+        final Set<PluginManifest> included = graph.closure(roots, installed);
+        try {
+            return graph.sort(included).getSorted();
+        } catch (DependencyGraph.CycleDetectedException e) {
+            // the synthetic plugins only depend on the layer below
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * An empty staging area for each invocation of {@link #stagingCold(ColdStaging)}, kept in its own state so that
+     * the other benchmarks do not pay for recreating it before every invocation.
+     */
+    @State(Scope.Thread)
+    public static class ColdStaging {
+        /**
+         * The staging area for the current invocation.
+         */
+        private File stagingDir;
+
+        /**
+         * Provides an empty staging area.
+         *
+         * @throws IOException if the staging area could not be created.
+         */
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            stagingDir = File.createTempFile("optional-plugins", ".cold");
+            Util.deleteFile(stagingDir);
+            if (!stagingDir.mkdirs()) {
+                throw new IOException("Could not create " + stagingDir);
+            }
+        }
+
+        /**
+         * Removes the staging area.
+         *
+         * @throws IOException if the staging area could not be removed.
+         */
+        @TearDown(Level.Invocation)
+        public void tearDown() throws IOException {
+            Util.deleteRecursive(stagingDir);
+        }
+    }
+
+    /**
+     * A stand-in filter that gives the same decision for every n<sup>th</sup> plugin. Its decisions only depend on
+     * the plugin, so it opts in to decision caching.
+     */
+    private static final class EveryNth extends PluginWrapperFilter {
+        /**
+         * The interval.
+         */
+        private final int n;
+        /**
+         * The decision.
+         */
+        private final Decision decision;
+
+        /**
+         * Constructor.
+         *
+         * @param n        the interval.
+         * @param decision the decision.
+         */
+        private EveryNth(int n, Decision decision) {
+            this.n = n;
+            this.decision = decision;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected boolean isDecisionCacheable() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Decision makeDecision(PluginWrapper plugin, File archive) {
+            return Decision.NO_OPINION;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Decision makeDecision(@Nonnull PluginManifest plugin) {
+            final String shortName = plugin.getShortName();
+            final int index = Integer.parseInt(shortName.substring(shortName.lastIndexOf('-') + 1));
+            return index % n == 0 ? decision : Decision.NO_OPINION;
+        }
+    }
+}
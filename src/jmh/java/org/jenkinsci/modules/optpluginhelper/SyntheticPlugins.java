@@ -0,0 +1,122 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Generates synthetic optional plugin archives for the benchmarks. The plugins are arranged in {@code depth} layers
+ * and every plugin outside the first layer depends on {@code fanOut} plugins from the layer below.
+ */
+final class SyntheticPlugins {
+    /**
+     * Utility class.
+     */
+    private SyntheticPlugins() {
+    }
+
+    /**
+     * Returns the short name of a synthetic plugin.
+     *
+     * @param index the index of the plugin.
+     * @return the short name.
+     */
+    static String shortName(int index) {
+        return "synthetic-" + index;
+    }
+
+    /**
+     * Generates the synthetic plugins.
+     *
+     * @param directory   the directory to write the {@code .jpi} files into.
+     * @param count       the number of plugins.
+     * @param fanOut      the number of dependencies of each plugin outside the first layer.
+     * @param depth       the number of layers.
+     * @param payloadSize the size of the (incompressible) payload in each plugin.
+     * @return the {@link URL}s of the generated plugins.
+     * @throws IOException if the plugins could not be written.
+     */
+    static List<URL> generate(File directory, int count, int fanOut, int depth, int payloadSize)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        final int layers = Math.max(1, Math.min(depth, count));
+        final int perLayer = (count + layers - 1) / layers;
+        final Random random = new Random(count);
+        final byte[] payload = new byte[payloadSize];
+        final List<URL> result = new ArrayList<URL>(count);
+        for (int i = 0; i < count; i++) {
+            final int layer = i / perLayer;
+            final StringBuilder dependencies = new StringBuilder();
+            if (layer > 0) {
+                final int below = (layer - 1) * perLayer;
+                for (int j = 0; j < Math.min(fanOut, perLayer); j++) {
+                    if (dependencies.length() > 0) {
+                        dependencies.append(',');
+                    }
+                    dependencies.append(shortName(below + (i + j) % perLayer)).append(":1.0");
+                    if (j % 3 == 2) {
+                        dependencies.append(";resolution:=optional");
+                    }
+                }
+            }
+            final Manifest manifest = new Manifest();
+            final Attributes attributes = manifest.getMainAttributes();
+            attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            attributes.putValue("Short-Name", shortName(i));
+            attributes.putValue("Plugin-Version", "1.0");
+            attributes.putValue("Support-Dynamic-Loading", "true");
+            if (dependencies.length() > 0) {
+                attributes.putValue("Plugin-Dependencies", dependencies.toString());
+            }
+            final File file = new File(directory, shortName(i) + ".jpi");
+            final OutputStream output = new FileOutputStream(file);
+            try {
+                final JarOutputStream jar = new JarOutputStream(output, manifest);
+                jar.putNextEntry(new JarEntry("WEB-INF/lib/" + shortName(i) + ".jar"));
+                random.nextBytes(payload);
+                jar.write(payload);
+                jar.closeEntry();
+                jar.finish();
+            } finally {
+                output.close();
+            }
+            result.add(file.toURI().toURL());
+        }
+        return result;
+    }
+}
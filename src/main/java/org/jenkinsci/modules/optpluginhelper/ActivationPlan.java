@@ -0,0 +1,452 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a refresh will do to the installed plugins: which optional plugins to install, which to enable or disable,
+ * the order to dynamically load them in, and whether a restart is required. A plan is computed by
+ * {@link PluginHelper#plan()} without modifying the plugins directory or staging the plugins to install, and carried
+ * out by {@link PluginHelper#apply(ActivationPlan)}, which stages them. Plans are immutable and serializable so that
+ * they can be computed ahead of time, cached and compared. They refer to the plugin archives by content digest
+ * rather than by location, so that a plan stays valid if the staging area is moved or recreated.
+ *
+ * @since 1.2
+ */
+public final class ActivationPlan implements Serializable {
+    /**
+     * Ensure consistent serialization.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The token identifying the state of the sources, filters and installed plugins the plan was computed for or
+     * {@code null} if the state cannot be identified.
+     */
+    @CheckForNull
+    private final String token;
+
+    /**
+     * The plugins to activate.
+     */
+    @Nonnull
+    private final List<Step> steps;
+
+    /**
+     * The short names of the plugins to dynamically load, grouped into dependency levels.
+     */
+    @Nonnull
+    private final List<List<String>> loadLevels;
+
+    /**
+     * Whether a restart is required to complete activation.
+     */
+    private final boolean restartRequired;
+
+    /**
+     * The short names of the available plugins that will not be activated.
+     */
+    @Nonnull
+    private final List<String> skipped;
+
+    /**
+     * Constructor.
+     *
+     * @param token           the token identifying the state the plan was computed for.
+     * @param steps           the plugins to activate.
+     * @param loadLevels      the short names of the plugins to dynamically load, grouped into dependency levels.
+     * @param restartRequired whether a restart is required to complete activation.
+     * @param skipped         the short names of the available plugins that will not be activated.
+     */
+    ActivationPlan(@CheckForNull String token, @Nonnull Collection<Step> steps,
+                   @Nonnull Collection<? extends Collection<String>> loadLevels, boolean restartRequired,
+                   @Nonnull Collection<String> skipped) {
+        this.token = token;
+        this.steps = Collections.unmodifiableList(new ArrayList<Step>(steps));
+        List<List<String>> levels = new ArrayList<List<String>>(loadLevels.size());
+        for (Collection<String> level : loadLevels) {
+            levels.add(Collections.unmodifiableList(new ArrayList<String>(level)));
+        }
+        this.loadLevels = Collections.unmodifiableList(levels);
+        this.restartRequired = restartRequired;
+        this.skipped = Collections.unmodifiableList(new ArrayList<String>(skipped));
+    }
+
+    /**
+     * Returns the token identifying the state of the sources, filters and installed plugins the plan was computed
+     * for.
+     *
+     * @return the token or {@code null} if the state cannot be identified, in which case the plan cannot be
+     * reused.
+     * @see PluginHelper#isCurrent(ActivationPlan)
+     */
+    @CheckForNull
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * Returns the plugins to activate.
+     *
+     * @return the plugins to activate.
+     */
+    @Nonnull
+    public List<Step> getSteps() {
+        return steps;
+    }
+
+    /**
+     * Returns the short names of the plugins to dynamically load, grouped into dependency levels. The plugins in a
+     * level only depend on plugins in earlier levels.
+     *
+     * @return the short names of the plugins to dynamically load, empty if a restart is required.
+     */
+    @Nonnull
+    public List<List<String>> getLoadLevels() {
+        return loadLevels;
+    }
+
+    /**
+     * Returns the short names of the plugins to dynamically load in load order.
+     *
+     * @return the short names of the plugins to dynamically load, empty if a restart is required.
+     */
+    @Nonnull
+    public List<String> getLoadOrder() {
+        List<String> result = new ArrayList<String>();
+        for (List<String> level : loadLevels) {
+            result.addAll(level);
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the steps of the plugins to dynamically load, grouped into dependency levels.
+     *
+     * @return the steps of the plugins to dynamically load.
+     */
+    @Nonnull
+    List<List<Step>> getLoadLevelSteps() {
+        Map<String, Step> byName = new HashMap<String, Step>();
+        for (Step step : steps) {
+            byName.put(step.getShortName(), step);
+        }
+        List<List<Step>> result = new ArrayList<List<Step>>(loadLevels.size());
+        for (List<String> level : loadLevels) {
+            List<Step> stepLevel = new ArrayList<Step>(level.size());
+            for (String shortName : level) {
+                final Step step = byName.get(shortName);
+                if (step != null) {
+                    stepLevel.add(step);
+                }
+            }
+            result.add(stepLevel);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the steps of the plugins to dynamically load in load order.
+     *
+     * @return the steps of the plugins to dynamically load.
+     */
+    @Nonnull
+    List<Step> getLoadOrderSteps() {
+        List<Step> result = new ArrayList<Step>();
+        for (List<Step> level : getLoadLevelSteps()) {
+            result.addAll(level);
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if a restart is required to complete activation.
+     *
+     * @return {@code true} if a restart is required to complete activation.
+     */
+    public boolean isRestartRequired() {
+        return restartRequired;
+    }
+
+    /**
+     * Returns the short names of the available plugins that will not be activated, either because the filters
+     * excluded them or because the installed version is current, newer or pinned.
+     *
+     * @return the short names of the available plugins that will not be activated.
+     */
+    @Nonnull
+    public List<String> getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Returns {@code true} if applying the plan will not change anything.
+     *
+     * @return {@code true} if applying the plan will not change anything.
+     */
+    public boolean isEmpty() {
+        return steps.isEmpty();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        ActivationPlan that = (ActivationPlan) o;
+        return restartRequired == that.restartRequired
+                && (token == null ? that.token == null : token.equals(that.token))
+                && steps.equals(that.steps)
+                && loadLevels.equals(that.loadLevels)
+                && skipped.equals(that.skipped);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        int result = token != null ? token.hashCode() : 0;
+        result = 31 * result + steps.hashCode();
+        result = 31 * result + loadLevels.hashCode();
+        result = 31 * result + (restartRequired ? 1 : 0);
+        result = 31 * result + skipped.hashCode();
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ActivationPlan{steps=" + steps + ", loadLevels=" + loadLevels + ", restartRequired=" + restartRequired
+                + ", skipped=" + skipped + '}';
+    }
+
+    /**
+     * The activation of a single optional plugin.
+     *
+     * @since 1.2
+     */
+    public static final class Step implements Serializable {
+        /**
+         * Ensure consistent serialization.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The short name of the plugin.
+         */
+        @Nonnull
+        private final String shortName;
+
+        /**
+         * The version of the plugin.
+         */
+        @Nonnull
+        private final String version;
+
+        /**
+         * The digest of the plugin archive or {@code null} if the plugin was read from its source without being
+         * staged, in which case the archive is identified by short name and version when the plan is applied.
+         */
+        @CheckForNull
+        private final String digest;
+
+        /**
+         * The file name of the plugin archive within the staging store or {@code null} if not staged when planned.
+         */
+        @CheckForNull
+        private final String fileName;
+
+        /**
+         * The timestamp the installed archive is given or {@code -1} to use that of the staged archive.
+         */
+        private final long lastModified;
+
+        /**
+         * Whether the archive needs to be installed into the plugins directory.
+         */
+        private final boolean install;
+
+        /**
+         * Whether the plugin can be enabled, i.e. all its dependencies can be satisfied.
+         */
+        private final boolean enable;
+
+        /**
+         * Constructor.
+         *
+         * @param shortName    the short name of the plugin.
+         * @param version      the version of the plugin.
+         * @param digest       the digest of the plugin archive or {@code null} if not known.
+         * @param fileName     the file name of the plugin archive within the staging store or {@code null} if not
+         *                     staged.
+         * @param lastModified the timestamp the installed archive is given or {@code -1} to use that of the staged
+         *                     archive.
+         * @param install      whether the archive needs to be installed into the plugins directory.
+         * @param enable       whether the plugin can be enabled.
+         */
+        Step(@Nonnull String shortName, @Nonnull String version, @CheckForNull String digest,
+             @CheckForNull String fileName, long lastModified, boolean install, boolean enable) {
+            this.shortName = shortName;
+            this.version = version;
+            this.digest = digest;
+            this.fileName = fileName;
+            this.lastModified = lastModified;
+            this.install = install;
+            this.enable = enable;
+        }
+
+        /**
+         * Returns the short name of the plugin.
+         *
+         * @return the short name of the plugin.
+         */
+        @Nonnull
+        public String getShortName() {
+            return shortName;
+        }
+
+        /**
+         * Returns the version of the plugin.
+         *
+         * @return the version of the plugin.
+         */
+        @Nonnull
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the digest of the plugin archive.
+         *
+         * @return the digest of the plugin archive or {@code null} if the plugin was not staged or indexed when the
+         * plan was computed.
+         */
+        @CheckForNull
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the file name of the plugin archive within the staging store.
+         *
+         * @return the file name of the plugin archive or {@code null} if the plugin was not staged when the plan was
+         * computed.
+         */
+        @CheckForNull
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Returns the timestamp the installed archive is given.
+         *
+         * @return the timestamp the installed archive is given or {@code -1} to use that of the staged archive.
+         */
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * Returns {@code true} if the archive needs to be installed into the plugins directory.
+         *
+         * @return {@code true} if the archive needs to be installed into the plugins directory.
+         */
+        public boolean isInstall() {
+            return install;
+        }
+
+        /**
+         * Returns {@code true} if the plugin can be enabled, {@code false} if it will be installed disabled because
+         * its dependencies cannot be satisfied.
+         *
+         * @return {@code true} if the plugin can be enabled.
+         */
+        public boolean isEnable() {
+            return enable;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Step that = (Step) o;
+            return lastModified == that.lastModified
+                    && install == that.install
+                    && enable == that.enable
+                    && shortName.equals(that.shortName)
+                    && version.equals(that.version)
+                    && (digest == null ? that.digest == null : digest.equals(that.digest))
+                    && (fileName == null ? that.fileName == null : fileName.equals(that.fileName));
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int hashCode() {
+            int result = shortName.hashCode();
+            result = 31 * result + version.hashCode();
+            result = 31 * result + (digest != null ? digest.hashCode() : 0);
+            result = 31 * result + (fileName != null ? fileName.hashCode() : 0);
+            result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+            result = 31 * result + (install ? 1 : 0);
+            result = 31 * result + (enable ? 1 : 0);
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return shortName + ":" + version + (install ? "" : ":installed") + (enable ? "" : ":disabled");
+        }
+    }
+}
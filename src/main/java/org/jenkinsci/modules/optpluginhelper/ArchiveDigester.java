@@ -0,0 +1,184 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.zip.Checksum;
+
+/**
+ * Reads whole plugin archives from the file system to digest them, optionally copying them at the same time. By
+ * default the archive is read through a channel into a single reused heap buffer. Mapping can be enabled, in which
+ * case the archive is memory mapped a window at a time, the digest and a copy are fed straight from the mapping,
+ * and only the checksum, which only accepts arrays on the Java versions we support, is fed through a reused chunk.
+ * Mapping is off by default because a mapped file cannot be replaced or deleted on Windows until the mapping is
+ * garbage collected, which would lock the files in a plugin directory.
+ *
+ * @since 1.2
+ */
+final class ArchiveDigester {
+    /**
+     * Set to {@code true} to memory map the archives instead of reading them through a reused heap buffer, only
+     * advisable where mapped files can be replaced and deleted while mapped.
+     */
+    private static final boolean ENABLE_MAPPING =
+            Boolean.getBoolean(ArchiveDigester.class.getName() + ".enableMapping");
+
+    /**
+     * The size of each mapped window.
+     */
+    private static final long WINDOW_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * The size of the chunk used to read archives and feed the checksum, also used for copying streams.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * Utility class.
+     */
+    private ArchiveDigester() {
+    }
+
+    /**
+     * Reads a whole archive.
+     *
+     * @param source   the archive.
+     * @param target   the file to copy the archive to or {@code null} to only read it.
+     * @param md5      the digest to update or {@code null}.
+     * @param checksum the checksum to update or {@code null}.
+     * @return the number of bytes read.
+     * @throws IOException if the archive could not be read or copied.
+     */
+    static long read(@Nonnull File source, @CheckForNull File target, @CheckForNull MessageDigest md5,
+                     @CheckForNull Checksum checksum) throws IOException {
+        final FileInputStream input = new FileInputStream(source);
+        try {
+            final FileOutputStream output = target == null ? null : new FileOutputStream(target);
+            try {
+                final FileChannel in = input.getChannel();
+                final FileChannel out = output == null ? null : output.getChannel();
+                return ENABLE_MAPPING
+                        ? map(in, out, md5, checksum)
+                        : read(in, out, md5, checksum);
+            } finally {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+    }
+
+    /**
+     * Reads a channel by mapping it a window at a time.
+     *
+     * @param in       the channel to read.
+     * @param out      the channel to copy to or {@code null}.
+     * @param md5      the digest to update or {@code null}.
+     * @param checksum the checksum to update or {@code null}.
+     * @return the number of bytes read.
+     * @throws IOException if the channel could not be read or copied.
+     */
+    private static long map(@Nonnull FileChannel in, @CheckForNull FileChannel out, @CheckForNull MessageDigest md5,
+                            @CheckForNull Checksum checksum) throws IOException {
+        final byte[] chunk = checksum == null ? null : new byte[CHUNK_SIZE];
+        final long size = in.size();
+        long position = 0;
+        while (position < size) {
+            final long length = Math.min(WINDOW_SIZE, size - position);
+            final ByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (md5 != null) {
+                md5.update(window.duplicate());
+            }
+            if (checksum != null) {
+                update(window.duplicate(), chunk, checksum);
+            }
+            while (out != null && window.hasRemaining()) {
+                out.write(window);
+            }
+            position += length;
+        }
+        return size;
+    }
+
+    /**
+     * Reads a channel through a single reused heap buffer.
+     *
+     * @param in       the channel to read.
+     * @param out      the channel to copy to or {@code null}.
+     * @param md5      the digest to update or {@code null}.
+     * @param checksum the checksum to update or {@code null}.
+     * @return the number of bytes read.
+     * @throws IOException if the channel could not be read or copied.
+     */
+    private static long read(@Nonnull FileChannel in, @CheckForNull FileChannel out, @CheckForNull MessageDigest md5,
+                             @CheckForNull Checksum checksum) throws IOException {
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long bytes = 0;
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            buffer.flip();
+            if (md5 != null) {
+                md5.update(chunk, 0, n);
+            }
+            if (checksum != null) {
+                checksum.update(chunk, 0, n);
+            }
+            while (out != null && buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            buffer.clear();
+            bytes += n;
+        }
+        return bytes;
+    }
+
+    /**
+     * Feeds a buffer into the checksum.
+     *
+     * @param buffer   the buffer, which is consumed.
+     * @param chunk    the reused chunk.
+     * @param checksum the checksum to update.
+     */
+    private static void update(@Nonnull ByteBuffer buffer, @Nonnull byte[] chunk, @Nonnull Checksum checksum) {
+        while (buffer.hasRemaining()) {
+            final int n = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, n);
+            checksum.update(chunk, 0, n);
+        }
+    }
+}
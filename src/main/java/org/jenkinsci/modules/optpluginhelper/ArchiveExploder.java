@@ -0,0 +1,203 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.ClassicPluginStrategy;
+import hudson.PluginStrategy;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.io.FilenameUtils;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Explodes newly installed plugin archives in the background so that the restart which activates them finds them
+ * already unpacked. The archives are exploded by {@link ClassicPluginStrategy} itself, which records the timestamp
+ * of the archive it exploded and skips archives whose timestamp matches on the next start, so an explosion that is
+ * interrupted by the restart is simply redone by the strategy.
+ *
+ * @since 1.2
+ */
+final class ArchiveExploder {
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ArchiveExploder.class.getName());
+
+    /**
+     * {@code ClassicPluginStrategy.explode(File,File)} if available.
+     */
+    private static final Method EXPLODE;
+
+    static {
+        Method explode = null;
+        try {
+            explode = ClassicPluginStrategy.class.getDeclaredMethod("explode", File.class, File.class);
+            explode.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            LOGGER.log(Level.FINE, "Plugins cannot be exploded in advance", e);
+        } catch (SecurityException e) {
+            LOGGER.log(Level.FINE, "Plugins cannot be exploded in advance", e);
+        }
+        EXPLODE = explode;
+    }
+
+    /**
+     * Explodes the archives.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The explosions that have been submitted keyed by archive.
+     */
+    private final Map<File, Future<?>> pending = new HashMap<File, Future<?>>();
+
+    /**
+     * Constructor.
+     *
+     * @param threads the number of archives to explode concurrently.
+     */
+    ArchiveExploder(int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PluginHelper.explode"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Explodes the archives in the background, if the strategy is one we know how to explode for.
+     *
+     * @param strategy the plugin strategy that will load the archives.
+     * @param archives the installed archives.
+     */
+    void submit(@Nonnull PluginStrategy strategy, @Nonnull Collection<File> archives) {
+        if (EXPLODE == null || !(strategy instanceof ClassicPluginStrategy)) {
+            LOGGER.log(Level.FINE, "Not exploding plugins in advance for {0}", strategy);
+            return;
+        }
+        final Object target = Modifier.isStatic(EXPLODE.getModifiers()) ? null : strategy;
+        synchronized (pending) {
+            for (Iterator<Future<?>> i = pending.values().iterator(); i.hasNext(); ) {
+                if (i.next().isDone()) {
+                    i.remove();
+                }
+            }
+            for (final File archive : archives) {
+                pending.put(archive, executor.submit(new Runnable() {
+                    public void run() {
+                        explode(target, archive);
+                    }
+                }));
+            }
+        }
+    }
+
+    /**
+     * Explodes an archive into the directory that {@link ClassicPluginStrategy} uses for it.
+     *
+     * @param target  the strategy or {@code null} if the explode method is static.
+     * @param archive  the installed archive.
+     */
+    private static void explode(Object target, File archive) {
+        final File expandDir = new File(archive.getParentFile(), FilenameUtils.getBaseName(archive.getName()));
+        final long start = System.nanoTime();
+        try {
+            EXPLODE.invoke(target, archive, expandDir);
+            LOGGER.log(Level.FINE, "Exploded {0} in {1}ms",
+                    new Object[]{archive, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)});
+        } catch (InvocationTargetException e) {
+            // the strategy will try again when it loads the plugin
+            LOGGER.log(Level.INFO, String.format("Could not explode %s in advance", archive), e.getCause());
+        } catch (IllegalAccessException e) {
+            LOGGER.log(Level.INFO, String.format("Could not explode %s in advance", archive), e);
+        }
+    }
+
+    /**
+     * Waits for any explosion of an archive to finish, so that the archive can be replaced.
+     *
+     * @param archive the installed archive.
+     */
+    void await(@Nonnull File archive) {
+        final Future<?> future;
+        synchronized (pending) {
+            future = pending.remove(archive);
+        }
+        if (future == null) {
+            return;
+        }
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.FINE, String.format("Could not explode %s in advance", archive), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits for all the submitted explosions to finish.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit of the timeout.
+     * @return {@code true} if all the explosions finished, {@code false} if the timeout expired first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    boolean awaitAll(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        final List<Future<?>> futures;
+        synchronized (pending) {
+            futures = new ArrayList<Future<?>>(pending.values());
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (ExecutionException e) {
+                // already logged by the explosion
+            } catch (TimeoutException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
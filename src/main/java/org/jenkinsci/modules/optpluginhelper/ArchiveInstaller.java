@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.Util;
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Installs staged plugin archives into the plugin root without duplicating the bytes where the file system allows.
+ * A hard link is preferred, falling back to a {@link FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)} copy when the staging area and the plugin root are on different file systems
+ * or the file system does not support links.
+ *
+ * @since 1.2
+ */
+final class ArchiveInstaller {
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(ArchiveInstaller.class.getName());
+
+    /**
+     * Set to {@code true} to always copy the archives.
+     */
+    private static final boolean DISABLE_LINKS =
+            Boolean.getBoolean(ArchiveInstaller.class.getName() + ".disableLinks");
+
+    /**
+     * {@code java.io.File.toPath()} if running on Java 7 or newer.
+     */
+    private static final Method TO_PATH;
+
+    /**
+     * {@code java.nio.file.Files.createLink(Path,Path)} if running on Java 7 or newer.
+     */
+    private static final Method CREATE_LINK;
+
+    static {
+        Method toPath = null;
+        Method createLink = null;
+        try {
+            toPath = File.class.getMethod("toPath");
+            Class<?> pathClass = Class.forName("java.nio.file.Path");
+            createLink = Class.forName("java.nio.file.Files").getMethod("createLink", pathClass, pathClass);
+        } catch (NoSuchMethodException e) {
+            LOGGER.log(Level.FINE, "Hard links are not available, staged plugins will be copied", e);
+        } catch (ClassNotFoundException e) {
+            LOGGER.log(Level.FINE, "Hard links are not available, staged plugins will be copied", e);
+        }
+        TO_PATH = createLink == null ? null : toPath;
+        CREATE_LINK = toPath == null ? null : createLink;
+    }
+
+    /**
+     * Utility class.
+     */
+    private ArchiveInstaller() {
+    }
+
+    /**
+     * Installs the source archive as the target file, replacing any existing target. The archive is linked or copied
+     * to a temporary file next to the target which is then renamed over the target, so the existing target is only
+     * replaced once the new archive is complete. Callers are responsible for setting the last modified timestamp of
+     * the target, which is a no-op when the target is a link.
+     *
+     * @param source the staged archive.
+     * @param target the file in the plugin root.
+     * @throws IOException if the archive could not be installed.
+     */
+    static void install(File source, File target) throws IOException {
+        final File temp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try {
+            // a link can only be created where there is no file
+            Util.deleteFile(temp);
+            if (!link(source, temp)) {
+                copy(source, temp);
+            }
+            replace(temp, target);
+        } finally {
+            if (temp.exists() && !temp.delete()) {
+                LOGGER.log(Level.FINE, "Couldn't delete temporary file {0}", temp);
+            }
+        }
+    }
+
+    /**
+     * Renames a file over the target, with care to Windows where {@link File#renameTo(File)} does not replace an
+     * existing file.
+     *
+     * @param file   the complete file.
+     * @param target the file to replace.
+     * @throws IOException if the file could not be renamed.
+     */
+    private static void replace(File file, File target) throws IOException {
+        if (file.renameTo(target)) {
+            return;
+        }
+        if (target.exists()) {
+            Util.deleteFile(target);
+        }
+        if (!file.renameTo(target)) {
+            throw new IOException("Could not rename " + file + " to " + target);
+        }
+    }
+
+    /**
+     * Tries to create a hard link.
+     *
+     * @param source the existing file.
+     * @param target the link to create.
+     * @return {@code true} if the link was created.
+     */
+    private static boolean link(File source, File target) {
+        if (DISABLE_LINKS || CREATE_LINK == null) {
+            return false;
+        }
+        try {
+            CREATE_LINK.invoke(null, TO_PATH.invoke(target), TO_PATH.invoke(source));
+            return true;
+        } catch (InvocationTargetException e) {
+            // typically different file systems or a file system that does not support links
+            LOGGER.log(Level.FINE, String.format("Could not link %s to %s, will copy instead", target, source),
+                    e.getCause());
+        } catch (IllegalAccessException e) {
+            LOGGER.log(Level.FINE, String.format("Could not link %s to %s, will copy instead", target, source), e);
+        }
+        return false;
+    }
+
+    /**
+     * Copies the file using channel transfers so that the kernel can move the bytes without going through the heap.
+     *
+     * @param source the file to copy.
+     * @param target the file to create.
+     * @throws IOException if the copy failed.
+     */
+    private static void copy(File source, File target) throws IOException {
+        final FileInputStream input = new FileInputStream(source);
+        try {
+            final FileOutputStream output = new FileOutputStream(target);
+            try {
+                final FileChannel in = input.getChannel();
+                final FileChannel out = output.getChannel();
+                final long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position, out);
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            IOUtils.closeQuietly(input);
+        }
+        if (target.length() != source.length()) {
+            throw new IOException("Failed to copy full contents from " + source + " to " + target);
+        }
+    }
+}
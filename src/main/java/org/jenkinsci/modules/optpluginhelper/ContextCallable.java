@@ -0,0 +1,99 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.Callable;
+
+/**
+ * Runs a task on a pool thread with the {@link Authentication} and context {@link ClassLoader} of the thread that
+ * created it, so that work moved onto a pool behaves as it did when it ran on the calling thread.
+ *
+ * @param <V> the type of result.
+ * @since 1.2
+ */
+final class ContextCallable<V> implements Callable<V> {
+    /**
+     * The task.
+     */
+    @Nonnull
+    private final Callable<V> delegate;
+
+    /**
+     * The authentication of the creating thread.
+     */
+    @Nonnull
+    private final Authentication authentication;
+
+    /**
+     * The context class loader of the creating thread.
+     */
+    private final ClassLoader contextClassLoader;
+
+    /**
+     * Constructor, captures the context of the calling thread.
+     *
+     * @param delegate the task.
+     */
+    ContextCallable(@Nonnull Callable<V> delegate) {
+        this.delegate = delegate;
+        this.authentication = Jenkins.getAuthentication();
+        this.contextClassLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    /**
+     * Wraps a task to run with the context of the calling thread.
+     *
+     * @param delegate the task.
+     * @param <V>      the type of result.
+     * @return the wrapped task.
+     */
+    @Nonnull
+    static <V> Callable<V> of(@Nonnull Callable<V> delegate) {
+        return new ContextCallable<V>(delegate);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public V call() throws Exception {
+        final Thread thread = Thread.currentThread();
+        final ClassLoader previousClassLoader = thread.getContextClassLoader();
+        final SecurityContext previousContext = ACL.impersonate(authentication);
+        thread.setContextClassLoader(contextClassLoader);
+        try {
+            return delegate.call();
+        } finally {
+            thread.setContextClassLoader(previousClassLoader);
+            SecurityContextHolder.setContext(previousContext);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the dependencies between a set of candidate {@link PluginManifest}s. The index is built once, in time
+ * proportional to the number of plugins and dependencies, and can then be shared by each stage of a refresh.
+ *
+ * @since 1.2
+ */
+final class DependencyGraph {
+
+    /**
+     * The candidate plugins keyed by short name. There is normally only one plugin per short name, but if two
+     * {@link PluginSource}s provide different versions of the same plugin then both are candidates.
+     */
+    private final Map<String, List<PluginManifest>> nodes;
+
+    /**
+     * The reverse edges, i.e. for each short name the candidate plugins that depend on it (mandatory or optional).
+     */
+    private final Map<String, List<PluginManifest>> dependents;
+
+    /**
+     * Constructor.
+     *
+     * @param nodes      the candidate plugins keyed by short name.
+     * @param dependents the reverse edges.
+     */
+    private DependencyGraph(Map<String, List<PluginManifest>> nodes, Map<String, List<PluginManifest>> dependents) {
+        this.nodes = nodes;
+        this.dependents = dependents;
+    }
+
+    /**
+     * Builds the dependency graph for the supplied plugins.
+     *
+     * @param plugins the candidate plugins.
+     * @return the dependency graph.
+     */
+    @Nonnull
+    static DependencyGraph build(@Nonnull Collection<PluginManifest> plugins) {
+        Map<String, List<PluginManifest>> nodes = new LinkedHashMap<String, List<PluginManifest>>();
+        Map<String, List<PluginManifest>> dependents = new LinkedHashMap<String, List<PluginManifest>>();
+        for (PluginManifest plugin : plugins) {
+            add(nodes, plugin.getShortName(), plugin);
+            for (PluginWrapper.Dependency d : plugin.getDependencies()) {
+                add(dependents, d.shortName, plugin);
+            }
+            for (PluginWrapper.Dependency d : plugin.getOptionalDependencies()) {
+                add(dependents, d.shortName, plugin);
+            }
+        }
+        return new DependencyGraph(nodes, dependents);
+    }
+
+    /**
+     * Adds a value to a multi-map.
+     *
+     * @param map   the multi-map.
+     * @param key   the key.
+     * @param value the value.
+     */
+    private static void add(Map<String, List<PluginManifest>> map, String key, PluginManifest value) {
+        List<PluginManifest> values = map.get(key);
+        if (values == null) {
+            values = new ArrayList<PluginManifest>(1);
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    /**
+     * Returns all the candidate plugins.
+     *
+     * @return all the candidate plugins.
+     */
+    @Nonnull
+    List<PluginManifest> getPlugins() {
+        List<PluginManifest> result = new ArrayList<PluginManifest>();
+        for (List<PluginManifest> plugins : nodes.values()) {
+            result.addAll(plugins);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the candidate plugins with the supplied short name.
+     *
+     * @param shortName the short name.
+     * @return the candidate plugins with the short name, empty if there are none.
+     */
+    @Nonnull
+    List<PluginManifest> get(String shortName) {
+        List<PluginManifest> result = nodes.get(shortName);
+        return result == null ? Collections.<PluginManifest>emptyList() : Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Returns the candidate plugins that depend on the supplied short name.
+     *
+     * @param shortName the short name.
+     * @return the candidate plugins that have a mandatory or optional dependency on the short name.
+     */
+    @Nonnull
+    List<PluginManifest> getDependents(String shortName) {
+        List<PluginManifest> result = dependents.get(shortName);
+        return result == null ? Collections.<PluginManifest>emptyList() : Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Computes the set of plugins that must be included in order to include the supplied plugins. This is all the
+     * mandatory dependencies together with any optional dependencies where an incompatible version is already
+     * installed.
+     *
+     * @param roots     the plugins to include.
+     * @param installed the installed plugins, used to check the versions of optional dependencies.
+     * @return the roots and every candidate plugin that they (transitively) require.
+     */
+    @Nonnull
+    Set<PluginManifest> closure(@Nonnull Collection<PluginManifest> roots, @Nonnull InstalledPlugins installed) {
+        Set<PluginManifest> result = new LinkedHashSet<PluginManifest>(roots);
+        Deque<PluginManifest> worklist = new ArrayDeque<PluginManifest>(result);
+        while (!worklist.isEmpty()) {
+            PluginManifest plugin = worklist.removeFirst();
+            for (PluginWrapper.Dependency d : plugin.getDependencies()) {
+                // we need all non-optional dependencies
+                include(d.shortName, result, worklist);
+            }
+            for (PluginWrapper.Dependency d : plugin.getOptionalDependencies()) {
+                // we only need optional dependencies if they are already installed and are an incompatible version
+                if (installed.isOlderInstalled(d)) {
+                    include(d.shortName, result, worklist);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Includes all the candidates with the supplied short name, queueing any that were not already included.
+     *
+     * @param shortName the short name.
+     * @param included  the included plugins.
+     * @param worklist  the plugins whose dependencies have yet to be processed.
+     */
+    private void include(String shortName, Set<PluginManifest> included, Deque<PluginManifest> worklist) {
+        List<PluginManifest> candidates = nodes.get(shortName);
+        if (candidates == null) {
+            return;
+        }
+        for (PluginManifest candidate : candidates) {
+            if (included.add(candidate)) {
+                worklist.addLast(candidate);
+            }
+        }
+    }
+
+    /**
+     * Sorts a subset of the candidate plugins so that every plugin comes after the plugins it depends on (mandatory
+     * or optional) from within the subset. The subset is indexed once so the sort takes time proportional to the
+     * number of plugins and dependencies.
+     *
+     * @param plugins the plugins to sort, which must all be candidates of this graph.
+     * @return the load order.
+     * @throws CycleDetectedException if the plugins cannot be ordered because of a dependency cycle.
+     */
+    @Nonnull
+    LoadOrder sort(@Nonnull Collection<PluginManifest> plugins) throws CycleDetectedException {
+        // index the subset by short name, the first plugin with any given short name wins
+        Map<String, PluginManifest> index = new LinkedHashMap<String, PluginManifest>();
+        for (PluginManifest plugin : plugins) {
+            if (!index.containsKey(plugin.getShortName())) {
+                index.put(plugin.getShortName(), plugin);
+            }
+        }
+        // count the unsatisfied dependencies of each plugin
+        Map<PluginManifest, Integer> pending = new HashMap<PluginManifest, Integer>();
+        List<PluginManifest> level = new ArrayList<PluginManifest>();
+        for (PluginManifest plugin : index.values()) {
+            int count = countWithin(plugin.getDependencies(), index) + countWithin(plugin.getOptionalDependencies(),
+                    index);
+            pending.put(plugin, count);
+            if (count == 0) {
+                level.add(plugin);
+            }
+        }
+        List<PluginManifest> sorted = new ArrayList<PluginManifest>(index.size());
+        List<List<PluginManifest>> levels = new ArrayList<List<PluginManifest>>();
+        while (!level.isEmpty()) {
+            sorted.addAll(level);
+            levels.add(Collections.unmodifiableList(level));
+            List<PluginManifest> next = new ArrayList<PluginManifest>();
+            for (PluginManifest plugin : level) {
+                for (PluginManifest dependent : getDependents(plugin.getShortName())) {
+                    Integer count = pending.get(dependent);
+                    if (count == null || index.get(dependent.getShortName()) != dependent) {
+                        // not part of the subset being sorted
+                        continue;
+                    }
+                    pending.put(dependent, count - 1);
+                    if (count == 1) {
+                        next.add(dependent);
+                    }
+                }
+            }
+            level = next;
+        }
+        if (sorted.size() < index.size()) {
+            throw new CycleDetectedException(findCycle(index, pending));
+        }
+        return new LoadOrder(sorted, levels);
+    }
+
+    /**
+     * Counts the dependencies that resolve to a plugin in the index.
+     *
+     * @param dependencies the dependencies.
+     * @param index        the plugins being sorted, keyed by short name.
+     * @return the number of dependencies that resolve to a plugin in the index.
+     */
+    private static int countWithin(List<PluginWrapper.Dependency> dependencies, Map<String, PluginManifest> index) {
+        int count = 0;
+        for (PluginWrapper.Dependency d : dependencies) {
+            if (index.containsKey(d.shortName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Finds a cycle amongst the plugins that could not be sorted. Every such plugin still has at least one
+     * unsatisfied dependency on another such plugin, so following those dependencies must revisit a plugin.
+     *
+     * @param index   the plugins being sorted, keyed by short name.
+     * @param pending the count of unsatisfied dependencies of each plugin.
+     * @return the short names of the plugins forming the cycle, in dependency order.
+     */
+    private static List<String> findCycle(Map<String, PluginManifest> index, Map<PluginManifest, Integer> pending) {
+        PluginManifest current = null;
+        for (Map.Entry<PluginManifest, Integer> entry : pending.entrySet()) {
+            if (entry.getValue() > 0) {
+                current = entry.getKey();
+                break;
+            }
+        }
+        List<String> path = new ArrayList<String>();
+        while (current != null && !path.contains(current.getShortName())) {
+            path.add(current.getShortName());
+            PluginManifest next = null;
+            List<PluginWrapper.Dependency> dependencies = new ArrayList<PluginWrapper.Dependency>(
+                    current.getDependencies());
+            dependencies.addAll(current.getOptionalDependencies());
+            for (PluginWrapper.Dependency d : dependencies) {
+                PluginManifest candidate = index.get(d.shortName);
+                if (candidate != null && pending.get(candidate) > 0) {
+                    next = candidate;
+                    break;
+                }
+            }
+            current = next;
+        }
+        if (current == null) {
+            // cannot happen, but report what we have rather than nothing
+            return path;
+        }
+        List<String> cycle = new ArrayList<String>(path.subList(path.indexOf(current.getShortName()), path.size()));
+        cycle.add(current.getShortName());
+        return cycle;
+    }
+
+    /**
+     * The result of {@link #sort(Collection)}.
+     */
+    static final class LoadOrder {
+        /**
+         * The plugins in load order.
+         */
+        private final List<PluginManifest> sorted;
+        /**
+         * The plugins grouped into levels, every plugin only depends on plugins in earlier levels.
+         */
+        private final List<List<PluginManifest>> levels;
+
+        /**
+         * Constructor.
+         *
+         * @param sorted the plugins in load order.
+         * @param levels the plugins grouped into levels.
+         */
+        private LoadOrder(List<PluginManifest> sorted, List<List<PluginManifest>> levels) {
+            this.sorted = Collections.unmodifiableList(sorted);
+            this.levels = Collections.unmodifiableList(levels);
+        }
+
+        /**
+         * Returns the plugins in load order.
+         *
+         * @return the plugins in load order.
+         */
+        @Nonnull
+        List<PluginManifest> getSorted() {
+            return sorted;
+        }
+
+        /**
+         * Returns the plugins grouped into levels where every plugin only depends on plugins in earlier levels, so
+         * the plugins within a level are independent of each other.
+         *
+         * @return the plugins grouped into levels.
+         */
+        @Nonnull
+        List<List<PluginManifest>> getLevels() {
+            return levels;
+        }
+    }
+
+    /**
+     * Signals that a set of plugins could not be sorted because of a dependency cycle.
+     */
+    static final class CycleDetectedException extends Exception {
+        /**
+         * Ensure consistent serialization.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * The short names of the plugins forming the cycle.
+         */
+        private final List<String> cycle;
+
+        /**
+         * Constructor.
+         *
+         * @param cycle the short names of the plugins forming the cycle.
+         */
+        CycleDetectedException(List<String> cycle) {
+            super("Dependency cycle detected: " + StringUtils.join(cycle, " -> "));
+            this.cycle = Collections.unmodifiableList(new ArrayList<String>(cycle));
+        }
+
+        /**
+         * Returns the short names of the plugins forming the cycle.
+         *
+         * @return the short names of the plugins forming the cycle, the first and last entries are the same plugin.
+         */
+        @Nonnull
+        List<String> getCycle() {
+            return cycle;
+        }
+    }
+}
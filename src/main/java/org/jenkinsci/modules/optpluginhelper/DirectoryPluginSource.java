@@ -0,0 +1,585 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+import hudson.model.PeriodicWork;
+import jenkins.model.Jenkins;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileFilter;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implementation of {@link PluginSource} that provides any plugins in a directory, such as a directory that
+ * configuration management drops plugin archives into. The directory is only used if the
+ * {@code org.jenkinsci.modules.optpluginhelper.DirectoryPluginSource.directory} system property is set.
+ * <p>
+ * On Java 7 and newer, changes to the directory are reported by the file system through a
+ * {@code java.nio.file.WatchService}, so the directory is neither polled nor rescanned while nothing happens. Once the
+ * directory has been quiet for long enough that any copies are likely to have completed, the changes are published
+ * and followed by a {@link PluginHelper#refreshAsync()}. Only the archives that were added or changed will be staged
+ * by the refresh. Where the watch service is not available, for example on Java 6 or when the directory did not exist
+ * at startup, the {@link Watcher} falls back to polling the directory.
+ *
+ * @since 1.2
+ */
+@Extension
+public class DirectoryPluginSource extends PluginSource {
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(DirectoryPluginSource.class.getName());
+
+    /**
+     * The directory to watch or {@code null} if disabled.
+     */
+    @CheckForNull
+    private static final String DIRECTORY = System.getProperty(DirectoryPluginSource.class.getName() + ".directory");
+
+    /**
+     * How often to check the directory for changes when falling back to polling, in milliseconds.
+     */
+    private static final long POLL_INTERVAL = Math.max(1000L,
+            Long.getLong(DirectoryPluginSource.class.getName() + ".pollInterval", 5000L));
+
+    /**
+     * How long the directory must remain unchanged before the changes are published, in milliseconds.
+     */
+    private static final long QUIET_PERIOD = Math.max(0L,
+            Long.getLong(DirectoryPluginSource.class.getName() + ".quietPeriod", 10000L));
+
+    /**
+     * The published state of the directory.
+     */
+    private volatile Snapshot published;
+
+    /**
+     * Receives the file system events for the directory or {@code null} if not watching.
+     */
+    private volatile EventWatcher eventWatcher;
+
+    /**
+     * Starts watching the directory for file system events, if the Java runtime supports it.
+     */
+    @Initializer(after = InitMilestone.EXTENSIONS_AUGMENTED)
+    public static void startWatching() {
+        final DirectoryPluginSource source = instance();
+        if (source != null && DIRECTORY != null) {
+            source.eventWatcher = EventWatcher.start(source, new File(DIRECTORY));
+        }
+    }
+
+    /**
+     * Stops watching the directory for file system events.
+     */
+    @Terminator
+    public static void stopWatching() {
+        final DirectoryPluginSource source = instance();
+        if (source != null && source.eventWatcher != null) {
+            source.eventWatcher.stop();
+            source.eventWatcher = null;
+        }
+    }
+
+    /**
+     * Returns the registered instance.
+     *
+     * @return the registered instance or {@code null} if not available.
+     */
+    @CheckForNull
+    private static DirectoryPluginSource instance() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        // TODO replace with ExtensionList.lookup() once past 1.572
+        return jenkins == null ? null : jenkins.getExtensionList(PluginSource.class).get(DirectoryPluginSource.class);
+    }
+
+    /**
+     * Checks whether the directory is being watched for file system events.
+     *
+     * @return {@code true} if the {@link Watcher} does not need to poll.
+     */
+    private boolean isWatching() {
+        final EventWatcher watcher = eventWatcher;
+        return watcher != null && watcher.isRunning();
+    }
+
+    /**
+     * Publishes a new state of the directory and, if it has changed, requests a refresh.
+     *
+     * @param snapshot the new state.
+     */
+    private void changed(@Nonnull Snapshot snapshot) {
+        if (publish(snapshot)) {
+            LOGGER.log(Level.INFO, "Optional plugins in {0} have changed, refreshing", DIRECTORY);
+            PluginHelper.instance().refreshAsync();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Nonnull
+    @Override
+    public List<URL> listPlugins() {
+        final Snapshot snapshot = getPublished();
+        if (snapshot == null) {
+            return Collections.emptyList();
+        }
+        List<URL> result = new ArrayList<URL>(snapshot.archives.size());
+        for (File archive : snapshot.archives) {
+            try {
+                result.add(archive.toURI().toURL());
+            } catch (MalformedURLException e) {
+                LOGGER.log(Level.WARNING, "Malformed plugin path " + archive, e);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getChangeToken() {
+        final Snapshot snapshot = getPublished();
+        return snapshot == null ? "" : snapshot.token;
+    }
+
+    /**
+     * Returns the published state of the directory, scanning the directory the first time if the {@link Watcher} has
+     * not run yet so that the plugins are available to the very first refresh.
+     *
+     * @return the published state or {@code null} if disabled.
+     */
+    @CheckForNull
+    private Snapshot getPublished() {
+        if (DIRECTORY == null) {
+            return null;
+        }
+        Snapshot snapshot = published;
+        if (snapshot == null) {
+            synchronized (this) {
+                snapshot = published;
+                if (snapshot == null) {
+                    snapshot = Snapshot.of(new File(DIRECTORY));
+                    published = snapshot;
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Publishes a new state of the directory.
+     *
+     * @param snapshot the new state.
+     * @return {@code true} if the published state changed.
+     */
+    private synchronized boolean publish(@Nonnull Snapshot snapshot) {
+        if (published != null && published.token.equals(snapshot.token)) {
+            return false;
+        }
+        published = snapshot;
+        return true;
+    }
+
+    /**
+     * The state of the directory: the plugin archives in it and a token identifying their names, sizes and
+     * timestamps.
+     */
+    private static final class Snapshot {
+        /**
+         * The plugin archives, sorted by name.
+         */
+        private final List<File> archives;
+        /**
+         * The token identifying the names, sizes and timestamps of the archives.
+         */
+        private final String token;
+
+        /**
+         * Constructor.
+         *
+         * @param archives the plugin archives.
+         * @param token    the token.
+         */
+        private Snapshot(List<File> archives, String token) {
+            this.archives = archives;
+            this.token = token;
+        }
+
+        /**
+         * Takes a snapshot of a directory. Only the directory listing and file attributes are read.
+         *
+         * @param directory the directory.
+         * @return the snapshot.
+         */
+        private static Snapshot of(File directory) {
+            File[] files = directory.listFiles(new FileFilter() {
+                public boolean accept(File file) {
+                    final String name = file.getName().toLowerCase();
+                    return (name.endsWith(".hpi") || name.endsWith(".jpi")) && file.isFile();
+                }
+            });
+            if (files == null) {
+                LOGGER.log(Level.FINE, "Optional plugin directory {0} does not exist", directory);
+                files = new File[0];
+            }
+            Arrays.sort(files);
+            StringBuilder buf = new StringBuilder();
+            for (File file : files) {
+                buf.append(file.getName())
+                        .append(':').append(file.length())
+                        .append(':').append(file.lastModified())
+                        .append('\n');
+            }
+            return new Snapshot(Collections.unmodifiableList(Arrays.asList(files)), Util.getDigestOf(buf.toString()));
+        }
+    }
+
+    /**
+     * Polls the directory for changes when it cannot be watched for file system events, debouncing bursts of changes
+     * and triggering a {@link PluginHelper#refreshAsync()} once the directory has settled.
+     */
+    @Extension
+    public static class Watcher extends PeriodicWork {
+        /**
+         * The most recent state of the directory, which may not have been published yet.
+         */
+        private Snapshot pending;
+
+        /**
+         * When {@link #pending} was first seen.
+         */
+        private long pendingSince;
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getRecurrencePeriod() {
+            return POLL_INTERVAL;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected void doRun() throws Exception {
+            if (DIRECTORY == null) {
+                return;
+            }
+            final DirectoryPluginSource source = instance();
+            if (source == null || source.isWatching()) {
+                // the file system tells us about changes, no need to look
+                pending = null;
+                return;
+            }
+            final Snapshot current = Snapshot.of(new File(DIRECTORY));
+            final long now = System.currentTimeMillis();
+            if (pending == null || !pending.token.equals(current.token)) {
+                // something changed, restart the quiet period
+                pending = current;
+                pendingSince = now;
+                return;
+            }
+            if (now - pendingSince < QUIET_PERIOD) {
+                return;
+            }
+            source.changed(current);
+        }
+    }
+
+    /**
+     * Watches the directory through a {@code java.nio.file.WatchService}, reached reflectively as we still run on
+     * Java 6. After the first event the watcher waits until no further events arrive for the quiet period before
+     * taking a snapshot, so a burst of changes results in a single refresh.
+     */
+    private static final class EventWatcher implements Runnable {
+        /**
+         * {@code java.io.File.toPath()}.
+         */
+        private static final Method TO_PATH;
+        /**
+         * {@code java.nio.file.FileSystems.getDefault()}.
+         */
+        private static final Method GET_DEFAULT;
+        /**
+         * {@code java.nio.file.FileSystem.newWatchService()}.
+         */
+        private static final Method NEW_WATCH_SERVICE;
+        /**
+         * {@code java.nio.file.Path.register(WatchService, WatchEvent.Kind...)}.
+         */
+        private static final Method REGISTER;
+        /**
+         * {@code java.nio.file.WatchService.take()}.
+         */
+        private static final Method TAKE;
+        /**
+         * {@code java.nio.file.WatchService.poll(long, TimeUnit)}.
+         */
+        private static final Method POLL;
+        /**
+         * {@code java.nio.file.WatchService.close()}.
+         */
+        private static final Method CLOSE;
+        /**
+         * {@code java.nio.file.WatchKey.pollEvents()}.
+         */
+        private static final Method POLL_EVENTS;
+        /**
+         * {@code java.nio.file.WatchKey.reset()}.
+         */
+        private static final Method RESET;
+        /**
+         * The create, delete and modify event kinds, as a {@code WatchEvent.Kind[]}.
+         */
+        private static final Object KINDS;
+
+        static {
+            Method toPath = null;
+            Method getDefault = null;
+            Method newWatchService = null;
+            Method register = null;
+            Method take = null;
+            Method poll = null;
+            Method close = null;
+            Method pollEvents = null;
+            Method reset = null;
+            Object kinds = null;
+            try {
+                final Class<?> pathClass = Class.forName("java.nio.file.Path");
+                final Class<?> watchServiceClass = Class.forName("java.nio.file.WatchService");
+                final Class<?> watchKeyClass = Class.forName("java.nio.file.WatchKey");
+                final Class<?> kindClass = Class.forName("java.nio.file.WatchEvent$Kind");
+                final Class<?> kindsClass = Class.forName("java.nio.file.StandardWatchEventKinds");
+                toPath = File.class.getMethod("toPath");
+                getDefault = Class.forName("java.nio.file.FileSystems").getMethod("getDefault");
+                newWatchService = Class.forName("java.nio.file.FileSystem").getMethod("newWatchService");
+                register = pathClass.getMethod("register", watchServiceClass,
+                        Array.newInstance(kindClass, 0).getClass());
+                take = watchServiceClass.getMethod("take");
+                poll = watchServiceClass.getMethod("poll", long.class, TimeUnit.class);
+                close = watchServiceClass.getMethod("close");
+                pollEvents = watchKeyClass.getMethod("pollEvents");
+                reset = watchKeyClass.getMethod("reset");
+                kinds = Array.newInstance(kindClass, 3);
+                Array.set(kinds, 0, kindsClass.getField("ENTRY_CREATE").get(null));
+                Array.set(kinds, 1, kindsClass.getField("ENTRY_DELETE").get(null));
+                Array.set(kinds, 2, kindsClass.getField("ENTRY_MODIFY").get(null));
+            } catch (ClassNotFoundException e) {
+                LOGGER.log(Level.FINE, "File system events are not available, the directory will be polled", e);
+                kinds = null;
+            } catch (NoSuchMethodException e) {
+                LOGGER.log(Level.FINE, "File system events are not available, the directory will be polled", e);
+                kinds = null;
+            } catch (NoSuchFieldException e) {
+                LOGGER.log(Level.FINE, "File system events are not available, the directory will be polled", e);
+                kinds = null;
+            } catch (IllegalAccessException e) {
+                LOGGER.log(Level.FINE, "File system events are not available, the directory will be polled", e);
+                kinds = null;
+            }
+            KINDS = kinds;
+            TO_PATH = toPath;
+            GET_DEFAULT = getDefault;
+            NEW_WATCH_SERVICE = newWatchService;
+            REGISTER = register;
+            TAKE = take;
+            POLL = poll;
+            CLOSE = close;
+            POLL_EVENTS = pollEvents;
+            RESET = reset;
+        }
+
+        /**
+         * The source to publish changes to.
+         */
+        private final DirectoryPluginSource source;
+        /**
+         * The directory.
+         */
+        private final File directory;
+        /**
+         * The {@code java.nio.file.WatchService}.
+         */
+        private final Object watchService;
+        /**
+         * Whether the watcher is still receiving events.
+         */
+        private volatile boolean running = true;
+
+        /**
+         * Constructor.
+         *
+         * @param source       the source to publish changes to.
+         * @param directory    the directory.
+         * @param watchService the watch service the directory is registered with.
+         */
+        private EventWatcher(DirectoryPluginSource source, File directory, Object watchService) {
+            this.source = source;
+            this.directory = directory;
+            this.watchService = watchService;
+        }
+
+        /**
+         * Starts watching a directory.
+         *
+         * @param source    the source to publish changes to.
+         * @param directory the directory.
+         * @return the watcher or {@code null} if the directory cannot be watched, in which case it will be polled.
+         */
+        @CheckForNull
+        static EventWatcher start(@Nonnull DirectoryPluginSource source, @Nonnull File directory) {
+            if (KINDS == null || !directory.isDirectory()) {
+                return null;
+            }
+            Object watchService = null;
+            try {
+                watchService = NEW_WATCH_SERVICE.invoke(GET_DEFAULT.invoke(null));
+                REGISTER.invoke(TO_PATH.invoke(directory), watchService, KINDS);
+            } catch (InvocationTargetException e) {
+                LOGGER.log(Level.INFO, String.format("Could not watch %s for changes, the directory will be polled",
+                        directory), e.getCause());
+                close(watchService);
+                return null;
+            } catch (IllegalAccessException e) {
+                LOGGER.log(Level.INFO, String.format("Could not watch %s for changes, the directory will be polled",
+                        directory), e);
+                close(watchService);
+                return null;
+            }
+            final EventWatcher watcher = new EventWatcher(source, directory, watchService);
+            final Thread thread = new Thread(watcher, "DirectoryPluginSource.watch [" + directory + "]");
+            thread.setDaemon(true);
+            thread.start();
+            return watcher;
+        }
+
+        /**
+         * Closes a watch service, ignoring any failure.
+         *
+         * @param watchService the watch service or {@code null}.
+         */
+        private static void close(@CheckForNull Object watchService) {
+            if (watchService == null) {
+                return;
+            }
+            try {
+                CLOSE.invoke(watchService);
+            } catch (InvocationTargetException e) {
+                LOGGER.log(Level.FINE, "Could not close watch service", e.getCause());
+            } catch (IllegalAccessException e) {
+                LOGGER.log(Level.FINE, "Could not close watch service", e);
+            }
+        }
+
+        /**
+         * Checks whether the watcher is still receiving events.
+         *
+         * @return {@code true} if the watcher is still receiving events.
+         */
+        boolean isRunning() {
+            return running;
+        }
+
+        /**
+         * Stops watching.
+         */
+        void stop() {
+            running = false;
+            close(watchService);
+        }
+
+        /**
+         * Discards the events of a watch key, we only need to know that something changed, and re-arms it.
+         *
+         * @param key the {@code java.nio.file.WatchKey}.
+         * @return {@code true} if the directory can still be watched.
+         * @throws InvocationTargetException if the key could not be processed.
+         * @throws IllegalAccessException    if the key could not be processed.
+         */
+        private static boolean drain(Object key) throws InvocationTargetException, IllegalAccessException {
+            POLL_EVENTS.invoke(key);
+            return (Boolean) RESET.invoke(key);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void run() {
+            try {
+                boolean valid = true;
+                while (running && valid) {
+                    valid = drain(TAKE.invoke(watchService));
+                    // wait for the directory to settle, any copies are likely to have completed by then
+                    Object key;
+                    while (valid && (key = POLL.invoke(watchService, QUIET_PERIOD, TimeUnit.MILLISECONDS)) != null) {
+                        valid = drain(key);
+                    }
+                    source.changed(Snapshot.of(directory));
+                }
+                if (!valid) {
+                    LOGGER.log(Level.INFO, "Can no longer watch {0} for changes, the directory will be polled",
+                            directory);
+                }
+            } catch (InvocationTargetException e) {
+                // closing the watch service wakes us with a ClosedWatchServiceException
+                if (running) {
+                    LOGGER.log(Level.WARNING, String.format(
+                            "Stopped watching %s for changes, the directory will be polled", directory), e.getCause());
+                }
+            } catch (IllegalAccessException e) {
+                LOGGER.log(Level.WARNING, String.format(
+                        "Stopped watching %s for changes, the directory will be polled", directory), e);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, String.format(
+                        "Stopped watching %s for changes, the directory will be polled", directory), e);
+            } finally {
+                running = false;
+                close(watchService);
+            }
+        }
+    }
+}
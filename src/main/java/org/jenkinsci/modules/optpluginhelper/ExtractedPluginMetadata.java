@@ -0,0 +1,227 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import java.io.File;
+
+/**
+ * The metadata we record about an optional plugin that has been extracted into the staging area.
+ *
+ * @since 1.2
+ */
+class ExtractedPluginMetadata {
+    /**
+     * The short name of the plugin.
+     */
+    private final String shortName;
+    /**
+     * The version of the plugin.
+     */
+    private final String version;
+    /**
+     * The digest of the staged archive.
+     */
+    private final String digest;
+    /**
+     * The path of the staged archive relative to the staging area.
+     */
+    private final String path;
+    /**
+     * The length of the staged archive.
+     */
+    private final long length;
+    /**
+     * The last modified timestamp of the staged archive.
+     */
+    private final long lastModified;
+    /**
+     * The last modified timestamp reported by the source or {@code 0} if unknown.
+     */
+    private final long sourceLastModified;
+    /**
+     * The length reported by the source or {@code -1} if unknown.
+     */
+    private final long sourceLength;
+    /**
+     * The digest of a sample of the staged archive or {@code null} if unknown, see {@link VerificationLevel#SAMPLED}.
+     */
+    private final String sample;
+    /**
+     * The CRC32 of the staged archive or {@code null} if unknown, see {@link VerificationLevel#CHECKSUM}.
+     */
+    private final String checksum;
+
+    /**
+     * Constructor.
+     *
+     * @param path               the path of the staged archive relative to the staging area.
+     * @param manifest           the manifest of the staged archive.
+     * @param sourceLastModified the last modified timestamp reported by the source or {@code 0} if unknown.
+     * @param sourceLength       the length reported by the source or {@code -1} if unknown.
+     * @param sample             the digest of a sample of the staged archive or {@code null} if unknown.
+     * @param checksum           the CRC32 of the staged archive or {@code null} if unknown.
+     */
+    public ExtractedPluginMetadata(String path, PluginManifest manifest, long sourceLastModified,
+                                   long sourceLength, String sample, String checksum) {
+        final File archive = manifest.getArchive();
+        this.shortName = manifest.getShortName();
+        this.version = manifest.getVersion();
+        this.digest = manifest.getDigest();
+        this.path = path;
+        this.length = archive.length();
+        this.lastModified = archive.lastModified();
+        this.sourceLastModified = sourceLastModified;
+        this.sourceLength = sourceLength;
+        this.sample = sample;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Returns the short name of the plugin.
+     *
+     * @return the short name of the plugin.
+     */
+    public String getShortName() {
+        return shortName;
+    }
+
+    /**
+     * Returns the version of the plugin.
+     *
+     * @return the version of the plugin.
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the path of the staged archive relative to the staging area.
+     *
+     * @return the path of the staged archive relative to the staging area or {@code null} if recorded by a version
+     * that did not use the {@link StagingStore}.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the digest of the staged archive.
+     *
+     * @return the digest of the staged archive.
+     */
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns the length of the staged archive.
+     *
+     * @return the length of the staged archive.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Returns the last modified timestamp of the staged archive.
+     *
+     * @return the last modified timestamp of the staged archive.
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Returns the digest of a sample of the staged archive.
+     *
+     * @return the digest of a sample of the staged archive or {@code null} if unknown.
+     */
+    public String getSample() {
+        return sample;
+    }
+
+    /**
+     * Returns the CRC32 of the staged archive.
+     *
+     * @return the CRC32 of the staged archive or {@code null} if unknown.
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
+    /**
+     * Checks if the supplied file is still the archive that this metadata was recorded for, as thoroughly as the
+     * configured {@link VerificationLevel} requires. By default only the length and last modified timestamp are
+     * compared so the archive contents are not read.
+     *
+     * @param archive the staged archive.
+     * @return {@code true} if the archive matches what was recorded.
+     */
+    public boolean isStagedAs(File archive) {
+        return isStagedAs(archive, VerificationLevel.CONFIGURED);
+    }
+
+    /**
+     * Checks if the supplied file is still the archive that this metadata was recorded for.
+     *
+     * @param archive the staged archive.
+     * @param level   how thoroughly to check.
+     * @return {@code true} if the archive matches what was recorded.
+     */
+    boolean isStagedAs(File archive, VerificationLevel level) {
+        return level.matches(this, archive);
+    }
+
+    /**
+     * Checks if the headers reported for the source of the archive are consistent with this metadata.
+     *
+     * @param sourceLastModified the last modified timestamp of the source or {@code 0} if unknown.
+     * @param sourceLength       the length of the source or {@code -1} if unknown.
+     * @return {@code true} if the source is consistent with the staged archive.
+     */
+    public boolean isExtractedFrom(long sourceLastModified, long sourceLength) {
+        return (sourceLastModified == 0 || sourceLastModified == this.sourceLastModified)
+                && (sourceLength < 0 || sourceLength == this.sourceLength);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "ExtractedPluginMetadata{" +
+                "shortName='" + shortName + '\'' +
+                ", version='" + version + '\'' +
+                ", digest='" + digest + '\'' +
+                ", path='" + path + '\'' +
+                ", length=" + length +
+                ", lastModified=" + lastModified +
+                ", sourceLastModified=" + sourceLastModified +
+                ", sourceLength=" + sourceLength +
+                ", sample='" + sample + '\'' +
+                ", checksum='" + checksum + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginManager;
+import hudson.PluginWrapper;
+import hudson.Util;
+import hudson.util.VersionNumber;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * An immutable snapshot of the plugins installed in the {@link PluginManager}, taken once at the start of a refresh so
+ * that deciding which optional plugins to activate does not need to repeatedly query the {@link PluginManager}.
+ * The snapshot also caches the parsed {@link VersionNumber} of each dependency version constraint.
+ *
+ * @since 1.2
+ */
+final class InstalledPlugins {
+
+    /**
+     * The installed plugins keyed by short name.
+     */
+    private final Map<String, Plugin> plugins;
+
+    /**
+     * The parsed dependency version constraints.
+     */
+    private final ConcurrentMap<String, VersionNumber> versions = new ConcurrentHashMap<String, VersionNumber>();
+
+    /**
+     * Constructor.
+     *
+     * @param plugins the installed plugins keyed by short name.
+     */
+    private InstalledPlugins(Map<String, Plugin> plugins) {
+        this.plugins = Collections.unmodifiableMap(plugins);
+    }
+
+    /**
+     * Takes a snapshot of the plugins installed in the supplied {@link PluginManager}.
+     *
+     * @param pm the plugin manager.
+     * @return the snapshot.
+     */
+    @Nonnull
+    static InstalledPlugins snapshot(@Nonnull PluginManager pm) {
+        List<Plugin> plugins = new ArrayList<Plugin>();
+        for (PluginWrapper w : pm.getPlugins()) {
+            plugins.add(new Plugin(w.getShortName(), w.getVersion(), w.getVersionNumber(),
+                    w.isActive(), w.isEnabled(), w.isPinned()));
+        }
+        return of(plugins);
+    }
+
+    /**
+     * Creates a snapshot from the supplied plugins, for when there is no {@link PluginManager} to ask.
+     *
+     * @param plugins the installed plugins.
+     * @return the snapshot.
+     */
+    @Nonnull
+    static InstalledPlugins of(@Nonnull Collection<Plugin> plugins) {
+        Map<String, Plugin> map = new LinkedHashMap<String, Plugin>();
+        for (Plugin p : plugins) {
+            map.put(p.getShortName(), p);
+        }
+        return new InstalledPlugins(map);
+    }
+
+    /**
+     * Returns the installed plugin with the supplied short name.
+     *
+     * @param shortName the short name.
+     * @return the installed plugin or {@code null} if the plugin is not installed.
+     */
+    @CheckForNull
+    Plugin get(String shortName) {
+        return plugins.get(shortName);
+    }
+
+    /**
+     * Returns all the installed plugins.
+     *
+     * @return all the installed plugins.
+     */
+    @Nonnull
+    Collection<Plugin> getAll() {
+        return plugins.values();
+    }
+
+    /**
+     * Returns a fingerprint of the snapshot that changes if any plugin is installed, removed, upgraded, enabled,
+     * disabled, activated or pinned.
+     *
+     * @return the fingerprint.
+     */
+    @Nonnull
+    String getFingerprint() {
+        StringBuilder buf = new StringBuilder();
+        for (Plugin p : plugins.values()) {
+            buf.append(p.getShortName()).append(':').append(p.getVersion())
+                    .append(p.isActive() ? ":active" : "")
+                    .append(p.isEnabled() ? ":enabled" : "")
+                    .append(p.isPinned() ? ":pinned" : "")
+                    .append('\n');
+        }
+        return Util.getDigestOf(buf.toString());
+    }
+
+    /**
+     * Returns the parsed version required by a dependency.
+     *
+     * @param dependency the dependency.
+     * @return the parsed version required by the dependency.
+     */
+    @Nonnull
+    VersionNumber getRequiredVersion(@Nonnull PluginWrapper.Dependency dependency) {
+        VersionNumber result = versions.get(dependency.version);
+        if (result == null) {
+            result = new VersionNumber(dependency.version);
+            versions.put(dependency.version, result);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if an incompatible version of a dependency is installed, i.e. the dependency is installed and either
+     * active or enabled, but is older than the version required.
+     *
+     * @param dependency the dependency.
+     * @return {@code true} if an incompatible version of the dependency is installed.
+     */
+    boolean isOlderInstalled(@Nonnull PluginWrapper.Dependency dependency) {
+        Plugin existing = plugins.get(dependency.shortName);
+        return existing != null && existing.isActiveOrEnabled()
+                && existing.getVersionNumber().isOlderThan(getRequiredVersion(dependency));
+    }
+
+    /**
+     * The state of an installed plugin at the time of the snapshot.
+     */
+    static final class Plugin {
+        /**
+         * The short name.
+         */
+        @Nonnull
+        private final String shortName;
+        /**
+         * The version.
+         */
+        @Nonnull
+        private final String version;
+        /**
+         * The parsed version.
+         */
+        @Nonnull
+        private final VersionNumber versionNumber;
+        /**
+         * Whether the plugin is active.
+         */
+        private final boolean active;
+        /**
+         * Whether the plugin is enabled.
+         */
+        private final boolean enabled;
+        /**
+         * Whether the plugin is pinned.
+         */
+        private final boolean pinned;
+
+        /**
+         * Constructor.
+         *
+         * @param shortName     the short name.
+         * @param version       the version.
+         * @param versionNumber the parsed version.
+         * @param active        whether the plugin is active.
+         * @param enabled       whether the plugin is enabled.
+         * @param pinned        whether the plugin is pinned.
+         */
+        Plugin(@Nonnull String shortName, @Nonnull String version, @Nonnull VersionNumber versionNumber,
+               boolean active, boolean enabled, boolean pinned) {
+            this.shortName = shortName;
+            this.version = version;
+            this.versionNumber = versionNumber;
+            this.active = active;
+            this.enabled = enabled;
+            this.pinned = pinned;
+        }
+
+        /**
+         * Returns the short name.
+         *
+         * @return the short name.
+         */
+        @Nonnull
+        String getShortName() {
+            return shortName;
+        }
+
+        /**
+         * Returns the version.
+         *
+         * @return the version.
+         */
+        @Nonnull
+        String getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the parsed version.
+         *
+         * @return the parsed version.
+         */
+        @Nonnull
+        VersionNumber getVersionNumber() {
+            return versionNumber;
+        }
+
+        /**
+         * Returns whether the plugin is active.
+         *
+         * @return whether the plugin is active.
+         */
+        boolean isActive() {
+            return active;
+        }
+
+        /**
+         * Returns whether the plugin is enabled.
+         *
+         * @return whether the plugin is enabled.
+         */
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * Returns whether the plugin is active or enabled.
+         *
+         * @return whether the plugin is active or enabled.
+         */
+        boolean isActiveOrEnabled() {
+            return active || enabled;
+        }
+
+        /**
+         * Returns whether the plugin is pinned.
+         *
+         * @return whether the plugin is pinned.
+         */
+        boolean isPinned() {
+            return pinned;
+        }
+    }
+}
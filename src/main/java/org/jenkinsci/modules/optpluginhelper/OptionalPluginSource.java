@@ -30,8 +30,10 @@ import jenkins.model.Jenkins;
 
 import javax.annotation.Nonnull;
 import javax.servlet.ServletContext;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -52,18 +54,42 @@ public class OptionalPluginSource extends PluginSource {
      */
     private static final Logger LOGGER = Logger.getLogger(OptionalPluginSource.class.getName());
 
+    /**
+     * The plugins in the web archive, which cannot change for the life of the process.
+     */
+    private volatile List<URL> plugins;
+
+    /**
+     * The change token, which cannot change for the life of the process.
+     */
+    private volatile String changeToken;
+
+    /**
+     * The index shipped with the plugins in the web archive, which cannot change for the life of the process.
+     */
+    private volatile PluginIndex index;
+
+    /**
+     * Whether we have looked for {@link #index}.
+     */
+    private volatile boolean indexLoaded;
+
     /**
      * {@inheritDoc}
      */
     @Nonnull
     @Override
     public List<URL> listPlugins() {
+        List<URL> result = plugins;
+        if (result != null) {
+            return result;
+        }
         final Jenkins jenkins = Jenkins.getInstance();
         if (jenkins == null) {
             return Collections.emptyList();
         }
         ServletContext context = jenkins.servletContext;
-        List<URL> result = new ArrayList<URL>();
+        result = new ArrayList<URL>();
         for (String path : Util.fixNull((Set<String>) context.getResourcePaths("/WEB-INF/optional-plugins"))) {
             String fileName = path.substring(path.lastIndexOf('/') + 1);
             if (fileName.length() == 0) {
@@ -80,6 +106,78 @@ public class OptionalPluginSource extends PluginSource {
                 }
             }
         }
+        result = Collections.unmodifiableList(result);
+        plugins = result;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The index is read from {@code /WEB-INF/optional-plugins/index.xml}, see {@link PluginIndex#FILE_NAME}.
+     */
+    @Override
+    public PluginIndex getIndex() {
+        if (indexLoaded) {
+            return index;
+        }
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return null;
+        }
+        PluginIndex result = null;
+        try {
+            final URL resource =
+                    jenkins.servletContext.getResource("/WEB-INF/optional-plugins/" + PluginIndex.FILE_NAME);
+            if (resource != null) {
+                result = PluginIndex.read(resource);
+            }
+        } catch (MalformedURLException e) {
+            LOGGER.log(Level.WARNING, "Malformed optional plugin index path", e);
+        }
+        index = result;
+        indexLoaded = true;
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The web archive cannot change while we are running, so the token is computed once from the path, size and
+     * timestamp of each plugin (or from its digest when the plugin is in the {@link #getIndex()}), which also lets the
+     * token detect a different web archive after a restart.
+     */
+    @Override
+    public String getChangeToken() {
+        String result = changeToken;
+        if (result != null) {
+            return result;
+        }
+        if (Jenkins.getInstance() == null) {
+            return null;
+        }
+        StringBuilder buf = new StringBuilder();
+        final PluginIndex index = getIndex();
+        for (URL url : listPlugins()) {
+            final PluginIndex.Entry entry = index == null ? null : index.get(url);
+            if (entry != null) {
+                // the indexed digest identifies the content without having to open the archive
+                buf.append(url.toExternalForm()).append(':').append(entry.getDigest()).append('\n');
+                continue;
+            }
+            try {
+                URLConnection connection = url.openConnection();
+                buf.append(url.toExternalForm())
+                        .append(':').append(connection.getContentLength())
+                        .append(':').append(connection.getLastModified())
+                        .append('\n');
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not inspect " + url + ", changes will not be tracked", e);
+                return null;
+            }
+        }
+        result = Util.getDigestOf(buf.toString());
+        changeToken = result;
         return result;
     }
 }
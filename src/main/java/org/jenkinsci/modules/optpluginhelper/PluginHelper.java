@@ -31,7 +31,8 @@ import hudson.PluginWrapper;
 import hudson.Util;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
-import hudson.util.CyclicGraphDetector;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import hudson.util.VersionNumber;
 import jenkins.RestartRequiredException;
 import jenkins.YesNoMaybe;
@@ -41,6 +42,8 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -48,13 +51,27 @@ import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -71,6 +88,37 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
      */
     private static final Logger LOGGER = Logger.getLogger(PluginHelper.class.getName());
 
+    /**
+     * The maximum number of optional plugins to stage concurrently, {@code 1} stages them sequentially.
+     */
+    private static final int STAGING_THREADS = Math.max(1, Integer.getInteger(PluginHelper.class.getName()
+            + ".stagingThreads", Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * The number of plugins within a dependency level to dynamically load concurrently. The default of {@code 1}
+     * loads the plugins sequentially in dependency order.
+     */
+    private static final int DYNAMIC_LOAD_THREADS = Math.max(1, Integer.getInteger(PluginHelper.class.getName()
+            + ".dynamicLoadThreads", 1));
+
+    /**
+     * Whether to read the manifests of optional plugins straight from their source and only stage the plugins that
+     * are going to be installed (or that a {@link PluginWrapperFilter} needs a {@link PluginWrapper} for).
+     */
+    private static final boolean LAZY_STAGING = Boolean.getBoolean(PluginHelper.class.getName() + ".lazyStaging");
+
+    /**
+     * Whether to explode newly installed plugins in the background when a restart is required to activate them, so
+     * that the restart does not have to explode them one at a time.
+     */
+    private static final boolean PRE_EXPLODE = Boolean.getBoolean(PluginHelper.class.getName() + ".preExplode");
+
+    /**
+     * The maximum number of plugins to explode concurrently when {@link #PRE_EXPLODE} is enabled.
+     */
+    private static final int PRE_EXPLODE_THREADS = Math.max(1, Integer.getInteger(PluginHelper.class.getName()
+            + ".preExplodeThreads", Runtime.getRuntime().availableProcessors()));
+
     /**
      * The directory where we stage the optional plugins ({@link PluginStrategy} needs {@link File} not {@link URL}).
      */
@@ -82,6 +130,65 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
     private final Map<String, ExtractedPluginMetadata> extractedPluginMetadataMap =
             Collections.synchronizedMap(new HashMap<String, ExtractedPluginMetadata>());
 
+    /**
+     * The URLs in {@link #extractedPluginMetadataMap} that have been verified against their source since we started,
+     * entries loaded from the {@link StagingManifest} are only trusted once the source has been checked. The URLs of
+     * a {@link PluginSource} are forgotten whenever its change token changes, so they are checked again.
+     */
+    private final Set<String> verifiedSources = Collections.synchronizedSet(new HashSet<String>());
+
+    /**
+     * What each {@link PluginSource} provided the last time we listed the plugins.
+     */
+    private final Map<PluginSource, SourceState> sourceStates =
+            Collections.synchronizedMap(new HashMap<PluginSource, SourceState>());
+
+    /**
+     * The token identifying the state of the sources, filters and installed plugins after the last refresh.
+     */
+    private String lastRefreshToken;
+
+    /**
+     * The result of the last refresh.
+     */
+    private RefreshResult lastRefreshResult;
+
+    /**
+     * Guards {@link #pendingRefresh}.
+     */
+    private final Object refreshLock = new Object();
+
+    /**
+     * The refresh that has been requested but not started yet, all requests made before it starts share it.
+     */
+    private RefreshTask pendingRefresh;
+
+    /**
+     * Held while a refresh runs or a plan is made or applied, so that only one of them uses the staging area and the
+     * plugins directory at a time.
+     */
+    private final Object refreshRunLock = new Object();
+
+    /**
+     * Runs the refreshes one at a time, the thread is only kept while there are refreshes to run.
+     */
+    private final ExecutorService refreshExecutor = createRefreshExecutor();
+
+    /**
+     * Explodes newly installed plugins in the background, only used if {@link #PRE_EXPLODE} is enabled.
+     */
+    private final ArchiveExploder exploder = new ArchiveExploder(PRE_EXPLODE_THREADS);
+
+    /**
+     * Set when a lazily listed plugin is staged, as the {@link StagingManifest} then needs to be saved.
+     */
+    private final AtomicBoolean lazyManifestChanged = new AtomicBoolean();
+
+    /**
+     * Flag to track whether the {@link StagingManifest} has been loaded into {@link #extractedPluginMetadataMap}.
+     */
+    private boolean manifestLoaded;
+
     /**
      * Default constructor.
      */
@@ -110,16 +217,16 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
     /**
      * List all the optional plugins (while populating the staging area with any new ones we discover).
      *
-     * @return the list of optional plugins available from all the current defined {@link PluginSource} extensions.
+     * @return the manifests of the optional plugins available from all the current defined {@link PluginSource}
+     * extensions.
      */
-    private List<File> listPlugins() {
-        // TODO figure out what to do if two sources provide different versions of the same plugin, currently undefined
-        List<File> result = new ArrayList<File>();
+    private List<PluginManifest> listPlugins() {
+        List<PluginManifest> result = new ArrayList<PluginManifest>();
         final Jenkins jenkins = Jenkins.getInstance();
         if (jenkins == null) {
             return result;
         }
-        File baseDir = new File(jenkins.root, OPTIONAL_PLUGIN_DIR);
+        final File baseDir = new File(jenkins.root, OPTIONAL_PLUGIN_DIR);
         if (baseDir.exists() && !baseDir.isDirectory()) {
             LOGGER.log(Level.SEVERE, "Optional plugin working directory {0} exists and is not a directory", baseDir);
             return result;
@@ -130,240 +237,1047 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
                 return result;
             }
         }
-        for (URL resource : PluginSource.allPlugins()) {
-            try {
-                final String externalForm = resource.toExternalForm();
-                ExtractedPluginMetadata metadata = extractedPluginMetadataMap.get(externalForm);
-                if (metadata != null) {
-                    File archive = new File(baseDir, metadata.shortName + ".jpi");
-                    if (archive.isFile() && archive.length() == metadata.length && Util.getDigestOf(archive)
-                            .equals(metadata.digest)) {
-                        result.add(archive);
-                        continue;
+        loadManifest(baseDir);
+        final AtomicBoolean manifestChanged = new AtomicBoolean();
+        final PluginStrategy strategy = jenkins.getPluginManager().getPluginStrategy();
+        // work out which sources have changed since last time and stage the plugins from those
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        long phaseStart = System.nanoTime();
+        final List<PluginSource> sources = PluginSource.all();
+        final Map<PluginSource, String> tokens = new HashMap<PluginSource, String>();
+        final Map<PluginSource, List<URL>> changed = new LinkedHashMap<PluginSource, List<URL>>();
+        final Set<URL> toStage = new LinkedHashSet<URL>();
+        final Map<String, PluginIndex.Entry> indexed = new HashMap<String, PluginIndex.Entry>();
+        for (PluginSource src : sources) {
+            final String token = PluginSource.changeTokenOf(src);
+            tokens.put(src, token);
+            final SourceState previous = sourceStates.get(src);
+            if (token != null && previous != null && token.equals(previous.token) && previous.isStaged()) {
+                LOGGER.log(Level.FINER, "Optional plugin source {0} is unchanged", src);
+                continue;
+            }
+            final List<URL> resources = PluginSource.listPluginsOf(src);
+            // the source has changed, so a plugin may have been replaced in place at a URL we already verified
+            if (previous != null) {
+                verifiedSources.removeAll(previous.manifests.keySet());
+            }
+            for (URL resource : resources) {
+                verifiedSources.remove(resource.toExternalForm());
+            }
+            changed.put(src, resources);
+            toStage.addAll(resources);
+            final PluginIndex index = PluginSource.indexOf(src);
+            if (index != null) {
+                for (URL resource : resources) {
+                    final PluginIndex.Entry entry = index.get(resource);
+                    if (entry != null && !indexed.containsKey(resource.toExternalForm())) {
+                        indexed.put(resource.toExternalForm(), entry);
                     }
                 }
-                final URLConnection connection = resource.openConnection();
-                long lastModified = connection.getLastModified();
-                long size = connection.getContentLength();
-                String path = resource.getPath();
-                String fileName = FilenameUtils.getBaseName(path);
-                boolean nameCheck = false;
-                if (StringUtils.isBlank(fileName)) {
-                    nameCheck = true;
-                    fileName = Util.getDigestOf(resource.toString());
-                }
-                File file = new File(baseDir, fileName + ".jpi");
-                if (file.isFile() && (file.lastModified() == lastModified || lastModified == 0)
-                        && file.length() == size) {
-                    final String fileDigest = Util.getDigestOf(file);
-                    final String resourceDigest;
-                    final InputStream stream = connection.getInputStream();
-                    try {
-                        resourceDigest = Util.getDigestOf(stream);
-                    } finally {
-                        IOUtils.closeQuietly(stream);
-                    }
-                    if (fileDigest.equals(resourceDigest)) {
-                        result.add(file);
-                        extractedPluginMetadataMap.put(externalForm, new ExtractedPluginMetadata(file));
-                        continue;
+            }
+        }
+        statistics.phase(RefreshStatistics.Phase.ENUMERATION, System.nanoTime() - phaseStart);
+        phaseStart = System.nanoTime();
+        final Map<String, PluginManifest> staged =
+                stageAll(new ArrayList<URL>(toStage), indexed, baseDir, strategy, manifestChanged);
+        statistics.phase(RefreshStatistics.Phase.STAGING, System.nanoTime() - phaseStart);
+        // now assemble the result in source order
+        final Map<PluginSource, SourceState> states = new HashMap<PluginSource, SourceState>();
+        final Set<String> seen = new HashSet<String>();
+        for (PluginSource src : sources) {
+            SourceState state;
+            final List<URL> resources = changed.get(src);
+            if (resources == null) {
+                state = sourceStates.get(src);
+            } else {
+                boolean complete = true;
+                Map<String, PluginManifest> manifests = new LinkedHashMap<String, PluginManifest>();
+                for (URL resource : resources) {
+                    final String externalForm = resource.toExternalForm();
+                    final PluginManifest manifest = staged.get(externalForm);
+                    if (manifest == null) {
+                        complete = false;
+                    } else {
+                        manifests.put(externalForm, manifest);
                     }
                 }
-                FileUtils.copyURLToFile(resource, file);
-                if (nameCheck) {
-                    final String shortName = jenkins.getPluginManager().getPluginStrategy().getShortName(file);
-                    if (!fileName.equals(shortName)) {
-                        File newFile = new File(baseDir, shortName + ".jpi");
-                        if (!newFile.isFile() || !Util.getDigestOf(newFile).equals(Util.getDigestOf(file))) {
-                            FileUtils.moveFile(file, newFile);
-                        }
-                        file = newFile;
-                    }
+                // only remember the token if every plugin was staged, otherwise the failures would never be retried
+                state = new SourceState(complete ? tokens.get(src) : null, manifests);
+            }
+            states.put(src, state);
+            for (Map.Entry<String, PluginManifest> entry : state.manifests.entrySet()) {
+                if (seen.add(entry.getKey())) {
+                    result.add(entry.getValue());
                 }
-                if (lastModified != 0) {
-                    if (!file.setLastModified(lastModified)) {
-                        LOGGER.log(Level.FINE, "Couldn't set last modified on {0}", file);
-                    }
+            }
+        }
+        synchronized (sourceStates) {
+            sourceStates.clear();
+            sourceStates.putAll(states);
+        }
+        if (manifestChanged.get()) {
+            saveManifest(baseDir);
+            // drop the archives that are no longer referenced by any source
+            Set<String> digests = new HashSet<String>();
+            synchronized (extractedPluginMetadataMap) {
+                for (ExtractedPluginMetadata metadata : extractedPluginMetadataMap.values()) {
+                    digests.add(metadata.getDigest());
                 }
-                result.add(file);
-                extractedPluginMetadataMap.put(externalForm, new ExtractedPluginMetadata(file));
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, String.format("Could not process optional plugin from %s", resource), e);
             }
+            new StagingStore(baseDir).retainAll(digests);
         }
+        result = highestVersions(result);
 
         LOGGER.log(Level.FINE, "List of plugins: " + result);
         return result;
     }
 
     /**
-     * Refreshes the list of plugins that should be loaded. This will re-examine the full list of plugins provided
-     * by all the {@link PluginSource} extensions and filter them through all the {@link PluginWrapperFilter}
-     * extensions to see if there are any plugins that can be installed. An attempt will be made to dynamically load
-     * the plugins.
+     * List all the optional plugins without modifying the staging area. Plugins that have not been staged are only
+     * staged if a {@link PluginWrapperFilter} needs a {@link PluginWrapper} for them.
      *
-     * @return {@code true} if a restart is required to complete activation, {@code false} if either nothing changed
-     * or the additional plugins were successfully dynamically loaded.
+     * @return the manifests of the optional plugins available from all the current defined {@link PluginSource}
+     * extensions.
      */
-    public boolean refresh() {
+    private List<PluginManifest> previewPlugins() {
+        List<PluginManifest> result = new ArrayList<PluginManifest>();
         final Jenkins jenkins = Jenkins.getInstance();
         if (jenkins == null) {
-            return false;
+            return result;
         }
-        PluginManager pm = jenkins.getPluginManager();
-        PluginStrategy ps = pm.getPluginStrategy();
+        final File baseDir = new File(jenkins.root, OPTIONAL_PLUGIN_DIR);
+        if (baseDir.isDirectory()) {
+            loadManifest(baseDir);
+        }
+        final StagingStore store = new StagingStore(baseDir);
+        final PluginStrategy strategy = jenkins.getPluginManager().getPluginStrategy();
+        final Set<String> seen = new HashSet<String>();
+        for (PluginSource src : PluginSource.all()) {
+            final PluginIndex index = PluginSource.indexOf(src);
+            for (URL resource : PluginSource.listPluginsOf(src)) {
+                if (!seen.add(resource.toExternalForm())) {
+                    continue;
+                }
+                try {
+                    result.add(preview(resource, index == null ? null : index.get(resource), store, strategy));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, String.format("Could not process optional plugin from %s", resource), e);
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, String.format("Could not process optional plugin from %s", resource), e);
+                }
+            }
+        }
+        result = highestVersions(result);
 
-        // now figure out which plugins are included
-        LOGGER.log(Level.FINE, "Enumerating available optional plugins and filtering to determine set for activation");
-        Map<PluginWrapper, File> wrapperToFile = new HashMap<PluginWrapper, File>();
-        Map<PluginWrapper, PluginWrapperFilter.Decision> wrapperToDecision = new HashMap<PluginWrapper,
-                PluginWrapperFilter.Decision>();
-        for (File plugin : listPlugins()) {
+        LOGGER.log(Level.FINE, "List of plugins: " + result);
+        return result;
+    }
+
+    /**
+     * Resolves plugins that are offered more than once, for example by different {@link PluginSource}s, by picking the
+     * highest version. Where the versions are the same the first one offered wins.
+     *
+     * @param manifests the plugins in the order they are offered.
+     * @return the plugins with at most one version of each, in the order they are first offered.
+     */
+    private static List<PluginManifest> highestVersions(List<PluginManifest> manifests) {
+        Map<String, PluginManifest> byShortName = new LinkedHashMap<String, PluginManifest>();
+        for (PluginManifest manifest : manifests) {
+            final PluginManifest current = byShortName.get(manifest.getShortName());
+            if (current == null) {
+                byShortName.put(manifest.getShortName(), manifest);
+            } else if (manifest.getVersionNumber().isNewerThan(current.getVersionNumber())) {
+                LOGGER.log(Level.FINE, "Using {0} version {1} in preference to version {2}",
+                        new Object[]{manifest.getShortName(), manifest.getVersion(), current.getVersion()});
+                byShortName.put(manifest.getShortName(), manifest);
+            } else if (!manifest.getVersion().equals(current.getVersion())) {
+                LOGGER.log(Level.FINE, "Using {0} version {1} in preference to version {2}",
+                        new Object[]{current.getShortName(), current.getVersion(), manifest.getVersion()});
+            }
+        }
+        return new ArrayList<PluginManifest>(byShortName.values());
+    }
+
+    /**
+     * Stages the optional plugins from the supplied {@link URL}s, using multiple threads if configured to do so. When
+     * staging lazily only the manifests of the plugins that are not staged already are read.
+     *
+     * @param resources       the optional plugins.
+     * @param baseDir         the staging area.
+     * @param strategy        the {@link PluginStrategy} to use for identifying plugins.
+     * @param manifestChanged set to {@code true} if the {@link #extractedPluginMetadataMap} was modified.
+     * @return the manifests of the staged plugins keyed by {@link URL#toExternalForm()} in the order of the supplied
+     * {@link URL}s, any plugins that could not be staged are omitted.
+     */
+    Map<String, PluginManifest> stageAll(final List<URL> resources, final File baseDir,
+                                         final PluginStrategy strategy, final AtomicBoolean manifestChanged) {
+        return stageAll(resources, Collections.<String, PluginIndex.Entry>emptyMap(), baseDir, strategy,
+                manifestChanged);
+    }
+
+    /**
+     * Stages the optional plugins from the supplied {@link URL}s, using multiple threads if configured to do so. The
+     * plugins that have a {@link PluginIndex} entry are described from the index rather than read.
+     *
+     * @param resources       the optional plugins.
+     * @param indexed         the index entries of the optional plugins keyed by {@link URL#toExternalForm()}.
+     * @param baseDir         the staging area.
+     * @param strategy        the {@link PluginStrategy} to use for identifying plugins.
+     * @param manifestChanged set to {@code true} if the {@link #extractedPluginMetadataMap} was modified.
+     * @return the manifests of the staged plugins keyed by {@link URL#toExternalForm()} in the order of the supplied
+     * {@link URL}s, any plugins that could not be staged are omitted.
+     */
+    Map<String, PluginManifest> stageAll(final List<URL> resources, final Map<String, PluginIndex.Entry> indexed,
+                                         final File baseDir, final PluginStrategy strategy,
+                                         final AtomicBoolean manifestChanged) {
+        final StagingStore store = new StagingStore(baseDir);
+        final Map<String, PluginManifest> result = new LinkedHashMap<String, PluginManifest>();
+        final int threads = Math.min(STAGING_THREADS, resources.size());
+        if (threads <= 1) {
+            for (URL resource : resources) {
+                try {
+                    result.put(resource.toExternalForm(), list(resource, indexed.get(resource.toExternalForm()), store,
+                            strategy, manifestChanged));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, String.format("Could not process optional plugin from %s", resource), e);
+                } catch (RuntimeException e) {
+                    // isolate the failure to this plugin, as the concurrent path does
+                    LOGGER.log(Level.WARNING, String.format("Could not process optional plugin from %s", resource), e);
+                }
+            }
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "PluginHelper.stage"));
             try {
-                PluginWrapper wrapper = ps.createPluginWrapper(plugin);
-                final PluginWrapper existing = pm.getPlugin(wrapper.getShortName());
-                if (existing != null
-                        && (existing.isEnabled() || existing.isActive())
-                        && !(wrapper.getVersionNumber().isNewerThan(existing.getVersionNumber()))) {
-                    LOGGER.log(Level.FINER, "Excluding {0} version {1} as version {2} is already installed",
-                            new Object[]{wrapper.getShortName(), wrapper.getVersion(), existing.getVersion()});
-                    continue;
+                final List<Future<PluginManifest>> futures = new ArrayList<Future<PluginManifest>>(resources.size());
+                for (final URL resource : resources) {
+                    futures.add(executor.submit(new Callable<PluginManifest>() {
+                        public PluginManifest call() throws IOException {
+                            return list(resource, indexed.get(resource.toExternalForm()), store, strategy,
+                                    manifestChanged);
+                        }
+                    }));
                 }
-                final PluginWrapperFilter.Decision decision = PluginWrapperFilter.decide(wrapper, plugin);
-                if (decision == PluginWrapperFilter.Decision.EXCLUDE) {
-                    LOGGER.log(Level.FINER, "Excluding {0} version {1} based on decision from filters",
-                            new Object[]{wrapper.getShortName(), wrapper.getVersion()});
-                } else {
-                    wrapperToFile.put(wrapper, plugin);
-                    wrapperToDecision.put(wrapper, decision);
+                // collect in submission order so that the result is independent of the order staging completes
+                for (int i = 0; i < futures.size(); i++) {
+                    final URL resource = resources.get(i);
+                    try {
+                        result.put(resource.toExternalForm(), futures.get(i).get());
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.WARNING, String.format("Could not process optional plugin from %s", resource),
+                                e.getCause());
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.WARNING,
+                                String.format("Interrupted while processing optional plugin from %s", resource), e);
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
                 }
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "IO exception processing " + plugin, e);
+            } finally {
+                executor.shutdownNow();
             }
         }
-        LOGGER.log(Level.FINE, "Initial filtered set determined: {0}", wrapperToDecision);
-        // now any non-optional dependencies of an included plugin get upped to included
-        boolean changed = true;
-        while (changed) {
-            changed = false;
-            Set<String> upscale = new HashSet<String>();
-            for (Map.Entry<PluginWrapper, PluginWrapperFilter.Decision> entry : wrapperToDecision.entrySet()) {
-                if (entry.getValue() != PluginWrapperFilter.Decision.INCLUDE) {
-                    continue;
+        return result;
+    }
+
+    /**
+     * Reads the manifest of the optional plugin from the supplied {@link URL}, staging the plugin unless staging
+     * lazily. When the plugin has an index entry the manifest comes from the index and the plugin is only read if it
+     * has to be staged. This method is safe to call concurrently for different {@link URL}s.
+     *
+     * @param resource        the optional plugin.
+     * @param entry           the index entry of the optional plugin or {@code null} if not indexed.
+     * @param store           the staging store.
+     * @param strategy        the {@link PluginStrategy} to use for identifying plugins.
+     * @param manifestChanged set to {@code true} if the {@link #extractedPluginMetadataMap} was modified.
+     * @return the manifest of the plugin, which is only staged if already staged or not staging lazily.
+     * @throws IOException if the plugin could not be read.
+     */
+    private PluginManifest list(final URL resource, @CheckForNull final PluginIndex.Entry entry,
+                                final StagingStore store, final PluginStrategy strategy,
+                                AtomicBoolean manifestChanged) throws IOException {
+        if (entry != null) {
+            final PluginManifest cached = cached(resource, entry, store, manifestChanged);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        if (!LAZY_STAGING) {
+            return checkIndexed(entry, stage(resource, store, strategy, manifestChanged));
+        }
+        if (entry == null) {
+            final PluginManifest cached = cached(resource, store);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final PluginManifest.Stager stager = stagerOf(resource, entry, store, strategy);
+        if (entry != null) {
+            return entry.toManifest(null, stager);
+        }
+        return PluginManifest.read(resource, baseNameOf(resource), stager);
+    }
+
+    /**
+     * Reads the manifest of the optional plugin from the supplied {@link URL} without modifying the staging area.
+     * The manifest comes from the staged archive if the plugin was staged and verified since we started, otherwise
+     * from the index entry or straight from the source.
+     *
+     * @param resource the optional plugin.
+     * @param entry    the index entry of the optional plugin or {@code null} if not indexed.
+     * @param store    the staging store.
+     * @param strategy the {@link PluginStrategy} to use for identifying plugins.
+     * @return the manifest of the plugin, which is only staged if already staged.
+     * @throws IOException if the plugin could not be read.
+     */
+    private PluginManifest preview(URL resource, @CheckForNull PluginIndex.Entry entry, StagingStore store,
+                                   PluginStrategy strategy) throws IOException {
+        final PluginManifest.Stager stager = stagerOf(resource, entry, store, strategy);
+        if (entry != null) {
+            final File archive = store.get(entry.getDigest());
+            return entry.toManifest(archive, archive == null ? stager : null);
+        }
+        final String externalForm = resource.toExternalForm();
+        final ExtractedPluginMetadata metadata = extractedPluginMetadataMap.get(externalForm);
+        if (metadata != null && metadata.getPath() != null && verifiedSources.contains(externalForm)) {
+            final File archive = store.resolve(metadata.getPath());
+            final File source = FileUtils.toFile(resource);
+            if (metadata.isStagedAs(archive, VerificationLevel.METADATA)
+                    && (source == null || metadata.isExtractedFrom(source.lastModified(), source.length()))) {
+                return PluginManifest.read(archive, metadata.getDigest());
+            }
+        }
+        return PluginManifest.read(resource, baseNameOf(resource), stager);
+    }
+
+    /**
+     * Creates the {@link PluginManifest.Stager} for a plugin that is listed without being staged.
+     *
+     * @param resource the optional plugin.
+     * @param entry    the index entry of the optional plugin or {@code null} if not indexed.
+     * @param store    the staging store.
+     * @param strategy the {@link PluginStrategy} to use for identifying plugins.
+     * @return the stager.
+     */
+    private PluginManifest.Stager stagerOf(final URL resource, @CheckForNull final PluginIndex.Entry entry,
+                                           final StagingStore store, final PluginStrategy strategy) {
+        return new PluginManifest.Stager() {
+            public PluginManifest stage() throws IOException {
+                final AtomicBoolean changed = new AtomicBoolean();
+                final PluginManifest staged = PluginHelper.this.stage(resource, store, strategy, changed);
+                if (changed.get()) {
+                    lazyManifestChanged.set(true);
                 }
-                for (PluginWrapper.Dependency d : entry.getKey().getDependencies()) {
-                    // we need all non-optional dependencies
-                    upscale.add(d.shortName);
+                return checkIndexed(entry, staged);
+            }
+        };
+    }
+
+    /**
+     * Returns the name to stage the optional plugin from the supplied {@link URL} under.
+     *
+     * @param resource the optional plugin.
+     * @return the file name without the {@code .jpi} extension.
+     */
+    private static String baseNameOf(URL resource) {
+        String baseName = FilenameUtils.getBaseName(resource.getPath());
+        if (StringUtils.isBlank(baseName)) {
+            baseName = Util.getDigestOf(resource.toString());
+        }
+        return baseName;
+    }
+
+    /**
+     * Logs if a staged plugin does not match its index entry. The staged archive is what gets installed, so the
+     * mismatch only means that the index is out of date.
+     *
+     * @param entry  the index entry of the plugin or {@code null} if not indexed.
+     * @param staged the manifest of the staged archive.
+     * @return the manifest of the staged archive.
+     */
+    private static PluginManifest checkIndexed(@CheckForNull PluginIndex.Entry entry, PluginManifest staged) {
+        if (entry != null && !entry.getDigest().equals(staged.getDigest())) {
+            LOGGER.log(Level.WARNING, "Optional plugin index entry {0} does not match the archive {1}, "
+                    + "the index is out of date", new Object[]{entry, staged});
+        }
+        return staged;
+    }
+
+    /**
+     * Stages any of the supplied plugins that were listed lazily, using multiple threads if configured to do so.
+     * Plugins that cannot be staged are logged and left unstaged.
+     *
+     * @param manifests the plugins.
+     * @return the time spent staging in nanoseconds.
+     */
+    private long stageSelected(Collection<PluginManifest> manifests) {
+        final List<PluginManifest> pending = new ArrayList<PluginManifest>();
+        for (PluginManifest manifest : manifests) {
+            if (!manifest.isStaged()) {
+                pending.add(manifest);
+            }
+        }
+        if (pending.isEmpty()) {
+            // filters may still have staged some to create their wrappers
+            saveLazilyStaged();
+            return 0L;
+        }
+        LOGGER.log(Level.FINE, "Staging selected optional plugins: {0}", pending);
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        final long phaseStart = System.nanoTime();
+        final int threads = Math.min(STAGING_THREADS, pending.size());
+        if (threads <= 1) {
+            for (PluginManifest manifest : pending) {
+                try {
+                    manifest.stage();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, String.format("Could not stage optional plugin %s", manifest), e);
+                } catch (RuntimeException e) {
+                    // isolate the failure to this plugin, as the concurrent path does
+                    LOGGER.log(Level.WARNING, String.format("Could not stage optional plugin %s", manifest), e);
                 }
-                for (PluginWrapper.Dependency d : entry.getKey().getOptionalDependencies()) {
-                    // we only need optional dependencies if they are already installed and are an incompatible version
-                    final PluginWrapper existing = pm.getPlugin(d.shortName);
-                    if (existing != null && (existing.isEnabled() || existing.isActive())) {
-                        if (existing.isOlderThan(new VersionNumber(d.version))) {
-                            upscale.add(d.shortName);
+            }
+        } else {
+            final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                    new NamingThreadFactory(new DaemonThreadFactory(), "PluginHelper.stage"));
+            try {
+                final List<Future<File>> futures = new ArrayList<Future<File>>(pending.size());
+                for (final PluginManifest manifest : pending) {
+                    futures.add(executor.submit(new Callable<File>() {
+                        public File call() throws IOException {
+                            return manifest.stage();
                         }
+                    }));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    final PluginManifest manifest = pending.get(i);
+                    try {
+                        futures.get(i).get();
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.WARNING, String.format("Could not stage optional plugin %s", manifest),
+                                e.getCause());
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.WARNING,
+                                String.format("Interrupted while staging optional plugin %s", manifest), e);
+                        Thread.currentThread().interrupt();
+                        break;
                     }
                 }
+            } finally {
+                executor.shutdownNow();
             }
-            for (Map.Entry<PluginWrapper, PluginWrapperFilter.Decision> entry : wrapperToDecision.entrySet()) {
-                if (entry.getValue() == PluginWrapperFilter.Decision.INCLUDE) {
-                    continue;
+        }
+        saveLazilyStaged();
+        final long elapsed = System.nanoTime() - phaseStart;
+        statistics.phase(RefreshStatistics.Phase.STAGING, elapsed);
+        return elapsed;
+    }
+
+    /**
+     * Saves the {@link StagingManifest} if any lazily listed plugins have been staged since it was last saved.
+     */
+    private void saveLazilyStaged() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null && lazyManifestChanged.getAndSet(false)) {
+            saveManifest(new File(jenkins.root, OPTIONAL_PLUGIN_DIR));
+        }
+    }
+
+    /**
+     * Returns the manifest of the optional plugin from the supplied {@link URL} if it is already staged and the
+     * source has not changed.
+     *
+     * @param resource the optional plugin.
+     * @param store    the staging store.
+     * @return the manifest of the staged archive or {@code null} if the plugin needs to be staged.
+     * @throws IOException if the plugin could not be read.
+     */
+    @CheckForNull
+    private PluginManifest cached(URL resource, StagingStore store) throws IOException {
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        final String externalForm = resource.toExternalForm();
+        ExtractedPluginMetadata metadata = extractedPluginMetadataMap.get(externalForm);
+        if (metadata != null && metadata.getPath() != null) {
+            File archive = store.resolve(metadata.getPath());
+            final boolean verified = verifiedSources.contains(externalForm);
+            // archives staged or verified since we started only need the cheapest check
+            final VerificationLevel level = verified ? VerificationLevel.METADATA : VerificationLevel.CONFIGURED;
+            if (!metadata.isStagedAs(archive, level)) {
+                evictCorrupt(archive, level, store);
+            } else {
+                final File source = FileUtils.toFile(resource);
+                if (verified && (source == null || metadata.isExtractedFrom(source.lastModified(), source.length()))) {
+                    // local files are cheap to check, so catch a file replaced in place between source changes
+                    statistics.stagingCacheHit();
+                    return PluginManifest.read(archive, metadata.getDigest());
                 }
-                if (upscale.contains(entry.getKey().getShortName())) {
-                    changed = true;
-                    entry.setValue(PluginWrapperFilter.Decision.INCLUDE);
+                // loaded from the manifest, the headers are enough to tell if the source has changed
+                final URLConnection connection = resource.openConnection();
+                if (metadata.isExtractedFrom(connection.getLastModified(), connection.getContentLength())) {
+                    verifiedSources.add(externalForm);
+                    statistics.stagingCacheHit();
+                    return PluginManifest.read(archive, metadata.getDigest());
                 }
             }
         }
-        for (Iterator<Map.Entry<PluginWrapper, PluginWrapperFilter.Decision>> iterator =
-             wrapperToDecision.entrySet().iterator(); iterator.hasNext(); ) {
-            Map.Entry<PluginWrapper, PluginWrapperFilter.Decision> entry = iterator.next();
-            if (entry.getValue() == PluginWrapperFilter.Decision.INCLUDE) {
+        return null;
+    }
+
+    /**
+     * Returns the manifest of an indexed optional plugin if an archive with the indexed digest is already staged.
+     * The source is not read and the archive is only read if the configured {@link VerificationLevel} requires it.
+     *
+     * @param resource        the optional plugin.
+     * @param entry           the index entry of the optional plugin.
+     * @param store           the staging store.
+     * @param manifestChanged set to {@code true} if the {@link #extractedPluginMetadataMap} was modified.
+     * @return the manifest of the staged archive or {@code null} if the plugin needs to be staged.
+     */
+    @CheckForNull
+    private PluginManifest cached(URL resource, PluginIndex.Entry entry, StagingStore store,
+                                  AtomicBoolean manifestChanged) {
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        final String externalForm = resource.toExternalForm();
+        final ExtractedPluginMetadata metadata = extractedPluginMetadataMap.get(externalForm);
+        if (metadata != null && metadata.getPath() != null && entry.getDigest().equals(metadata.getDigest())) {
+            final File archive = store.resolve(metadata.getPath());
+            final VerificationLevel level = verifiedSources.contains(externalForm)
+                    ? VerificationLevel.METADATA
+                    : VerificationLevel.CONFIGURED;
+            if (metadata.isStagedAs(archive, level)) {
+                verifiedSources.add(externalForm);
+                statistics.stagingCacheHit();
+                return entry.toManifest(archive, null);
+            }
+            evictCorrupt(archive, level, store);
+        }
+        // the same content may already be staged from another source or URL
+        final File archive = store.get(entry.getDigest());
+        if (archive == null) {
+            return null;
+        }
+        final String sample;
+        try {
+            if (VerificationLevel.CONFIGURED.isContentVerified()
+                    && !entry.getDigest().equals(VerificationLevel.digestOf(archive))) {
+                evictCorrupt(archive, VerificationLevel.DIGEST, store);
+                return null;
+            }
+            sample = VerificationLevel.sampleOf(archive);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not verify " + archive, e);
+            return null;
+        }
+        final PluginManifest manifest = entry.toManifest(archive, null);
+        extractedPluginMetadataMap.put(externalForm,
+                new ExtractedPluginMetadata(store.pathOf(archive), manifest, 0L, entry.getSize(), sample, null));
+        verifiedSources.add(externalForm);
+        manifestChanged.set(true);
+        statistics.stagingCacheHit();
+        return manifest;
+    }
+
+    /**
+     * Removes a staged archive that failed a verification level which reads the content, as the archive is corrupt
+     * and staging it again would otherwise find the corrupt copy in the {@link StagingStore}.
+     *
+     * @param archive the staged archive.
+     * @param level   the verification level that failed.
+     * @param store   the staging store.
+     */
+    private static void evictCorrupt(File archive, VerificationLevel level, StagingStore store) {
+        if (level.isContentVerified() && archive.isFile()) {
+            LOGGER.log(Level.WARNING, "Staged optional plugin {0} failed {1} verification and will be staged again",
+                    new Object[]{archive, level});
+            store.remove(archive);
+        }
+    }
+
+    /**
+     * Ensures that the optional plugin from the supplied {@link URL} is present in the staging area and reads its
+     * manifest. This method is safe to call concurrently for different {@link URL}s.
+     *
+     * @param resource        the optional plugin.
+     * @param store           the staging store.
+     * @param strategy        the {@link PluginStrategy} to use for identifying plugins.
+     * @param manifestChanged set to {@code true} if the {@link #extractedPluginMetadataMap} was modified.
+     * @return the manifest of the staged archive.
+     * @throws IOException if the plugin could not be staged.
+     */
+    private PluginManifest stage(URL resource, StagingStore store, PluginStrategy strategy,
+                                 AtomicBoolean manifestChanged) throws IOException {
+        final PluginManifest cached = cached(resource, store);
+        if (cached != null) {
+            return cached;
+        }
+        RefreshStatistics.get().stagingCacheMiss();
+        final String externalForm = resource.toExternalForm();
+        // plugins on the file system are read through a channel rather than a stream
+        final File source = FileUtils.toFile(resource);
+        final boolean local = source != null && source.isFile();
+        final URLConnection connection = local ? null : resource.openConnection();
+        long lastModified = local ? source.lastModified() : connection.getLastModified();
+        long size = local ? source.length() : connection.getContentLength();
+        String path = resource.getPath();
+        String fileName = FilenameUtils.getBaseName(path);
+        boolean nameCheck = false;
+        if (StringUtils.isBlank(fileName)) {
+            nameCheck = true;
+            fileName = Util.getDigestOf(resource.toString());
+        }
+        // single pass over the resource: the digest is computed as the archive is stored, identical content from
+        // another source or URL is only stored once
+        final StagingStore.Entry entry;
+        if (local) {
+            entry = store.add(source, fileName);
+        } else {
+            final InputStream stream = connection.getInputStream();
+            try {
+                entry = store.add(stream, fileName);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        }
+        File file = entry.getArchive();
+        if (entry.isCreated()) {
+            if (nameCheck) {
+                final String shortName = strategy.getShortName(file);
+                if (!fileName.equals(shortName)) {
+                    File newFile = new File(file.getParentFile(), shortName + ".jpi");
+                    FileUtils.moveFile(file, newFile);
+                    file = newFile;
+                }
+            }
+            if (lastModified != 0) {
+                if (!file.setLastModified(lastModified)) {
+                    LOGGER.log(Level.FINE, "Couldn't set last modified on {0}", file);
+                }
+            }
+        }
+        final PluginManifest manifest = PluginManifest.read(file, entry.getDigest());
+        extractedPluginMetadataMap.put(externalForm, new ExtractedPluginMetadata(store.pathOf(file), manifest,
+                lastModified, size, VerificationLevel.sampleOf(file), entry.getChecksum()));
+        verifiedSources.add(externalForm);
+        manifestChanged.set(true);
+        return manifest;
+    }
+
+    /**
+     * Loads the {@link StagingManifest} from the staging area if we have not done so already.
+     *
+     * @param baseDir the staging area.
+     */
+    private synchronized void loadManifest(File baseDir) {
+        if (manifestLoaded) {
+            return;
+        }
+        manifestLoaded = true;
+        for (Map.Entry<String, ExtractedPluginMetadata> entry : StagingManifest.load(baseDir).entrySet()) {
+            if (!extractedPluginMetadataMap.containsKey(entry.getKey())) {
+                extractedPluginMetadataMap.put(entry.getKey(), entry.getValue());
+            }
+        }
+        LOGGER.log(Level.FINE, "Loaded staging manifest with {0} entries", extractedPluginMetadataMap.size());
+    }
+
+    /**
+     * Writes the current {@link #extractedPluginMetadataMap} to the {@link StagingManifest} in the staging area.
+     *
+     * @param baseDir the staging area.
+     */
+    private void saveManifest(File baseDir) {
+        final Map<String, ExtractedPluginMetadata> snapshot;
+        synchronized (extractedPluginMetadataMap) {
+            snapshot = new HashMap<String, ExtractedPluginMetadata>(extractedPluginMetadataMap);
+        }
+        StagingManifest.save(baseDir, snapshot);
+    }
+
+    /**
+     * Starts exploding newly installed plugins in the background if {@link #PRE_EXPLODE} is enabled.
+     *
+     * @param pm       the plugin manager.
+     * @param archives the newly installed plugins that will be loaded by the next restart.
+     */
+    private void preExplode(PluginManager pm, Collection<File> archives) {
+        if (PRE_EXPLODE && !archives.isEmpty()) {
+            LOGGER.log(Level.FINE, "Exploding {0} newly installed plugins in the background", archives.size());
+            exploder.submit(pm.getPluginStrategy(), archives);
+        }
+    }
+
+    /**
+     * Waits for the background explosion of newly installed plugins to finish, which callers that restart Jenkins
+     * as soon as {@link #refresh()} returns {@code true} can use to get the full benefit of it. Plugins that have not
+     * been exploded when Jenkins restarts are exploded as usual during startup.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit    the unit of the timeout.
+     * @return {@code true} if there is nothing left to explode, {@code false} if the timeout expired first.
+     * @throws InterruptedException if interrupted while waiting.
+     * @since 1.2
+     */
+    public boolean awaitPreExplosion(long timeout, @Nonnull TimeUnit unit) throws InterruptedException {
+        return exploder.awaitAll(timeout, unit);
+    }
+
+    /**
+     * Refreshes the list of plugins that should be loaded. This will re-examine the full list of plugins provided
+     * by all the {@link PluginSource} extensions and filter them through all the {@link PluginWrapperFilter}
+     * extensions to see if there are any plugins that can be installed. An attempt will be made to dynamically load
+     * the plugins. The refresh runs on the calling thread and blocks until it has completed; if another refresh is
+     * already waiting to run, this call waits for that one instead. See {@link #refreshAsync()}.
+     *
+     * @return {@code true} if a restart is required to complete activation, {@code false} if either nothing changed
+     * or the additional plugins were successfully dynamically loaded.
+     */
+    public boolean refresh() {
+        if (Thread.holdsLock(refreshRunLock)) {
+            // called from within a refresh, e.g. by a plugin being loaded, waiting would never end
+            return doRefresh().isRestartRequired();
+        }
+        final RefreshTask task = pendingRefresh();
+        // does nothing if the task has already been started by another caller or by the executor
+        task.run();
+        try {
+            return task.get().isRestartRequired();
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while waiting for optional plugins to be refreshed", e);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Requests a refresh of the list of plugins that should be loaded without waiting for it to complete. At most
+     * one refresh runs at a time: if a refresh is already running, a follow-up refresh is queued to pick up any
+     * changes it may have missed, and any further requests made before the follow-up starts share it.
+     *
+     * @return the eventual result of the refresh.
+     * @see #refresh()
+     * @since 1.2
+     */
+    public Future<RefreshResult> refreshAsync() {
+        synchronized (refreshLock) {
+            if (pendingRefresh == null || pendingRefresh.isDone()) {
+                pendingRefresh = new RefreshTask(new RefreshCall());
+                // if a caller of refresh() gets to the task first, the executor will find it already started
+                refreshExecutor.execute(pendingRefresh);
+            }
+            return pendingRefresh;
+        }
+    }
+
+    /**
+     * Returns the refresh that has been requested but not started yet, creating it if necessary.
+     *
+     * @return the pending refresh.
+     */
+    private RefreshTask pendingRefresh() {
+        synchronized (refreshLock) {
+            if (pendingRefresh == null || pendingRefresh.isDone()) {
+                pendingRefresh = new RefreshTask(new RefreshCall());
+            }
+            return pendingRefresh;
+        }
+    }
+
+    /**
+     * Creates the executor that runs the refreshes requested by {@link #refreshAsync()}.
+     *
+     * @return the executor.
+     */
+    private static ExecutorService createRefreshExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PluginHelper.refresh"));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Performs a refresh unless nothing has changed since the last refresh.
+     *
+     * @return the result of the refresh.
+     */
+    private RefreshResult doRefresh() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return RefreshResult.NOTHING;
+        }
+        PluginManager pm = jenkins.getPluginManager();
+        // the installed plugins are not expected to change while we decide, so query the plugin manager only once
+        final InstalledPlugins installed = InstalledPlugins.snapshot(pm);
+        final String current = refreshToken(installed);
+        synchronized (this) {
+            if (current != null && current.equals(lastRefreshToken) && lastRefreshResult != null) {
+                LOGGER.log(Level.FINE, "No changes to optional plugin sources, filters or installed plugins");
+                RefreshStatistics.get().refreshUnchanged();
+                // nothing is loaded this time, but a restart needed by the previous refresh is still needed
+                return lastRefreshResult.unchanged();
+            }
+        }
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        statistics.refreshStarted();
+        final long start = System.nanoTime();
+        final RefreshResult result;
+        try {
+            final List<PluginManifest> available = listPlugins();
+            result = apply(jenkins, plan(pm, installed, current, available), available);
+        } finally {
+            statistics.refreshCompleted(System.nanoTime() - start);
+        }
+        // a source that could not be staged completely must be retried on the next refresh
+        final String token = isStagingComplete() ? refreshToken(InstalledPlugins.snapshot(pm)) : null;
+        synchronized (this) {
+            lastRefreshToken = token;
+            lastRefreshResult = result;
+        }
+        return result;
+    }
+
+    /**
+     * Checks whether every {@link PluginSource} was staged completely the last time we listed the plugins.
+     *
+     * @return {@code true} if no source needs to be re-examined.
+     */
+    private boolean isStagingComplete() {
+        synchronized (sourceStates) {
+            for (SourceState state : sourceStates.values()) {
+                if (state.token == null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Computes a token that identifies the state of all the {@link PluginSource}s, {@link PluginWrapperFilter}s and
+     * installed plugins.
+     *
+     * @param installed the installed plugins.
+     * @return the token or {@code null} if any {@link PluginSource} cannot tell whether it has changed or any
+     * {@link PluginWrapperFilter} has not opted in to decision caching.
+     */
+    private static String refreshToken(InstalledPlugins installed) {
+        StringBuilder buf = new StringBuilder();
+        for (PluginSource src : PluginSource.all()) {
+            final String token = PluginSource.changeTokenOf(src);
+            if (token == null) {
+                return null;
+            }
+            buf.append(src.getClass().getName()).append('=').append(token).append('\n');
+        }
+        final String filters = PluginWrapperFilter.fingerprint();
+        if (filters == null) {
+            return null;
+        }
+        buf.append(filters).append('\n');
+        buf.append(installed.getFingerprint());
+        return Util.getDigestOf(buf.toString());
+    }
+
+    /**
+     * Works out what a refresh would do without modifying the plugins directory or the staging area. The plugins are
+     * described from the staging area, their index entries or their sources; only a plugin that a
+     * {@link PluginWrapperFilter} needs a {@link PluginWrapper} for is staged. Staging the plugins to install and
+     * removing the archives that no source provides any more is left to {@link #apply(ActivationPlan)}. Waits for
+     * any refresh that is running, as that uses the staging area too.
+     *
+     * @return the plan, which can be carried out with {@link #apply(ActivationPlan)}.
+     * @since 1.2
+     */
+    @Nonnull
+    public ActivationPlan plan() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null) {
+            return new ActivationPlan(null, Collections.<ActivationPlan.Step>emptyList(),
+                    Collections.<List<String>>emptyList(), false, Collections.<String>emptyList());
+        }
+        final PluginManager pm = jenkins.getPluginManager();
+        synchronized (refreshRunLock) {
+            final InstalledPlugins installed = InstalledPlugins.snapshot(pm);
+            return plan(pm, installed, refreshToken(installed), previewPlugins());
+        }
+    }
+
+    /**
+     * Checks whether a plan was computed for the current state of the {@link PluginSource}s,
+     * {@link PluginWrapperFilter}s and installed plugins, in which case it can be applied without planning again.
+     *
+     * @param plan the plan.
+     * @return {@code true} if the plan is current.
+     * @since 1.2
+     */
+    public boolean isCurrent(@Nonnull ActivationPlan plan) {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null || plan.getToken() == null) {
+            return false;
+        }
+        return plan.getToken().equals(refreshToken(InstalledPlugins.snapshot(jenkins.getPluginManager())));
+    }
+
+    /**
+     * Works out what a refresh would do.
+     *
+     * @param pm        the plugin manager.
+     * @param installed the installed plugins at the start of the refresh.
+     * @param token     the token identifying the state of the sources, filters and installed plugins.
+     * @param available the manifests of the optional plugins.
+     * @return the plan.
+     */
+    private ActivationPlan plan(PluginManager pm, InstalledPlugins installed, String token,
+                                List<PluginManifest> available) {
+
+        // now figure out which plugins are included
+        LOGGER.log(Level.FINE, "Enumerating available optional plugins and filtering to determine set for activation");
+        // only the manifests are needed to decide, a PluginWrapper is only created if a filter needs one
+        Map<PluginManifest, PluginWrapperFilter.Decision> manifestToDecision = new LinkedHashMap<PluginManifest,
+                PluginWrapperFilter.Decision>();
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        List<PluginManifest> candidates = new ArrayList<PluginManifest>();
+        Set<String> skipped = new TreeSet<String>();
+        for (PluginManifest manifest : available) {
+            final InstalledPlugins.Plugin existing = installed.get(manifest.getShortName());
+            if (existing != null
+                    && existing.isActiveOrEnabled()
+                    && !(manifest.getVersionNumber().isNewerThan(existing.getVersionNumber()))) {
+                LOGGER.log(Level.FINER, "Excluding {0} version {1} as version {2} is already installed",
+                        new Object[]{manifest.getShortName(), manifest.getVersion(), existing.getVersion()});
+                skipped.add(manifest.getShortName());
                 continue;
             }
-            wrapperToFile.remove(entry.getKey());
-            iterator.remove();
+            candidates.add(manifest);
         }
-        LOGGER.log(Level.FINE, "After adding required dependencies: {0}", wrapperToDecision.keySet());
+        // filters see all the candidates at once so that they can batch any lookups
+        long phaseStart = System.nanoTime();
+        final Map<PluginManifest, PluginWrapperFilter.Decision> decisions = PluginWrapperFilter.decideAll(candidates);
+        statistics.phase(RefreshStatistics.Phase.FILTERING, System.nanoTime() - phaseStart);
+        for (Map.Entry<PluginManifest, PluginWrapperFilter.Decision> entry : decisions.entrySet()) {
+            final PluginManifest manifest = entry.getKey();
+            if (entry.getValue() == PluginWrapperFilter.Decision.EXCLUDE) {
+                LOGGER.log(Level.FINER, "Excluding {0} version {1} based on decision from filters",
+                        new Object[]{manifest.getShortName(), manifest.getVersion()});
+                skipped.add(manifest.getShortName());
+            } else {
+                manifestToDecision.put(manifest, entry.getValue());
+            }
+        }
+        LOGGER.log(Level.FINE, "Initial filtered set determined: {0}", manifestToDecision);
+        // now any non-optional dependencies of an included plugin get upped to included
+        phaseStart = System.nanoTime();
+        final DependencyGraph graph = DependencyGraph.build(manifestToDecision.keySet());
+        List<PluginManifest> roots = new ArrayList<PluginManifest>();
+        for (Map.Entry<PluginManifest, PluginWrapperFilter.Decision> entry : manifestToDecision.entrySet()) {
+            if (entry.getValue() == PluginWrapperFilter.Decision.INCLUDE) {
+                roots.add(entry.getKey());
+            }
+        }
+        final Set<PluginManifest> included = graph.closure(roots, installed);
+        for (Iterator<Map.Entry<PluginManifest, PluginWrapperFilter.Decision>> iterator =
+             manifestToDecision.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<PluginManifest, PluginWrapperFilter.Decision> entry = iterator.next();
+            if (included.contains(entry.getKey())) {
+                entry.setValue(PluginWrapperFilter.Decision.INCLUDE);
+            } else {
+                skipped.add(entry.getKey().getShortName());
+                iterator.remove();
+            }
+        }
+        LOGGER.log(Level.FINE, "After adding required dependencies: {0}", manifestToDecision.keySet());
 
-        if (wrapperToFile.isEmpty()) {
+        if (manifestToDecision.isEmpty()) {
             // bail early if the list is empty
             LOGGER.log(Level.FINE, "No new optional plugins to install");
-            return false;
+            statistics.phase(RefreshStatistics.Phase.RESOLUTION, System.nanoTime() - phaseStart);
+            return new ActivationPlan(token, Collections.<ActivationPlan.Step>emptyList(),
+                    Collections.<List<String>>emptyList(), false, skipped);
         }
 
         LOGGER.log(Level.FINE, "Checking if dynamic loading of plugins is possible...");
         boolean cannotDynamicLoad = false;
-        for (PluginWrapper wrapper : wrapperToFile.keySet()) {
-            final PluginWrapper existing = pm.getPlugin(wrapper.getShortName());
-            if (existing != null && (existing.isActive() || existing.isEnabled()) && !existing.isPinned()) {
+        for (PluginManifest manifest : manifestToDecision.keySet()) {
+            final InstalledPlugins.Plugin existing = installed.get(manifest.getShortName());
+            if (existing != null && existing.isActiveOrEnabled() && !existing.isPinned()) {
                 LOGGER.log(Level.INFO, "Cannot dynamically load optional plugins because {0} is already installed",
                         existing.getShortName());
                 cannotDynamicLoad = true;
-            } else if (YesNoMaybe.NO == wrapper.supportsDynamicLoad()) {
+            } else if (YesNoMaybe.NO == manifest.supportsDynamicLoad()) {
                 LOGGER.log(Level.INFO,
                         "Cannot dynamically load optional plugins because {0} does not support dynamic load",
-                        wrapper.getShortName());
+                        manifest.getShortName());
                 cannotDynamicLoad = true;
             }
         }
 
         Map<String, VersionNumber> finalVersions = new HashMap<String, VersionNumber>();
         // start with the active/enabled plugins that are currently installed
-        for (PluginWrapper w : pm.getPlugins()) {
-            if (w.isActive() || w.isEnabled()) {
+        for (InstalledPlugins.Plugin w : installed.getAll()) {
+            if (w.isActiveOrEnabled()) {
                 finalVersions.put(w.getShortName(), w.getVersionNumber());
             }
         }
         // now add any new versions
-        for (PluginWrapper w : wrapperToFile.keySet()) {
-            VersionNumber existing = finalVersions.get(w.getShortName());
-            if (existing == null || w.getVersionNumber().isNewerThan(existing)) {
-                finalVersions.put(w.getShortName(), w.getVersionNumber());
+        for (PluginManifest m : manifestToDecision.keySet()) {
+            VersionNumber existing = finalVersions.get(m.getShortName());
+            if (existing == null || m.getVersionNumber().isNewerThan(existing)) {
+                finalVersions.put(m.getShortName(), m.getVersionNumber());
             }
         }
 
         LOGGER.log(Level.FINE, "Expected final plugin version map: {0}", finalVersions);
 
         Set<String> pluginsToEnable = new HashSet<String>();
-        for (PluginWrapper w : wrapperToFile.keySet()) {
+        for (PluginManifest m : manifestToDecision.keySet()) {
             LOGGER.log(Level.FINE, "Checking if {0} can be enabled, i.e. all dependencies can be satisfied",
-                    w.getShortName());
+                    m.getShortName());
             boolean missingDependency = false;
-            for (PluginWrapper.Dependency d : w.getDependencies()) {
+            for (PluginWrapper.Dependency d : m.getDependencies()) {
                 VersionNumber v = finalVersions.get(d.shortName);
-                if (v == null || v.isOlderThan(new VersionNumber(d.version))) {
+                if (v == null || v.isOlderThan(installed.getRequiredVersion(d))) {
                     missingDependency = true;
                     LOGGER.log(Level.FINER, "{0} is missing a dependency on {1} version {2}",
-                            new Object[]{w.getShortName(), d.shortName, d.version});
+                            new Object[]{m.getShortName(), d.shortName, d.version});
                 }
             }
-            for (PluginWrapper.Dependency d : w.getOptionalDependencies()) {
+            for (PluginWrapper.Dependency d : m.getOptionalDependencies()) {
                 VersionNumber v = finalVersions.get(d.shortName);
-                if (v != null && v.isOlderThan(new VersionNumber(d.version))) {
+                if (v != null && v.isOlderThan(installed.getRequiredVersion(d))) {
                     missingDependency = true;
                     LOGGER.log(Level.FINER, "{0} is missing a dependency on {1} version {2}",
-                            new Object[]{w.getShortName(), d.shortName, d.version});
+                            new Object[]{m.getShortName(), d.shortName, d.version});
                 }
             }
             if (missingDependency) {
-                LOGGER.log(Level.FINE, "{0} cannot be enabled due to missing dependencies", w.getShortName());
+                LOGGER.log(Level.FINE, "{0} cannot be enabled due to missing dependencies", m.getShortName());
             } else {
-                LOGGER.log(Level.FINE, "{0} can be enabled", w.getShortName());
-                pluginsToEnable.add(w.getShortName());
+                LOGGER.log(Level.FINE, "{0} can be enabled", m.getShortName());
+                pluginsToEnable.add(m.getShortName());
             }
         }
 
-        Map<String, File> newPlugins = new HashMap<String, File>();
-        for (Map.Entry<PluginWrapper, File> entry : wrapperToFile.entrySet()) {
-            final String shortName = entry.getKey().getShortName();
-            final PluginWrapper existing = pm.getPlugin(shortName);
-            final PluginWrapper proposed = entry.getKey();
+        LOGGER.log(Level.FINE, "Working out which plugins need to be installed...");
+        final File rootDir = pm.rootDir;
+        List<PluginManifest> proposals = new ArrayList<PluginManifest>();
+        for (PluginManifest proposed : manifestToDecision.keySet()) {
+            final String shortName = proposed.getShortName();
+            final InstalledPlugins.Plugin existing = installed.get(shortName);
             if (existing != null && existing.isActive()) {
                 if (existing.getVersionNumber().equals(proposed.getVersionNumber())) {
                     LOGGER.log(Level.FINE, "Ignoring installing plugin {0} as current version is desired",
                             shortName);
                     // ignore as we are fine
+                    skipped.add(shortName);
                     continue;
                 }
                 if (existing.getVersionNumber().isNewerThan(proposed.getVersionNumber())) {
@@ -371,18 +1285,123 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
                             "Ignoring installing plugin {0} as current version {1} is newer that bundled "
                                     + "version {2}",
                             new Object[]{shortName, existing.getVersion(), proposed.getVersion()});
+                    skipped.add(shortName);
                     continue;
                 }
                 if (existing.isPinned()) {
                     LOGGER.log(Level.INFO,
                             "Ignoring installing plugin {0} as it is pinned. You might want to unpin this plugin.",
                             new Object[]{shortName});
+                    skipped.add(shortName);
                     continue;
                 }
 
                 LOGGER.log(Level.INFO, "Restart required as plugin {0} is already installed", shortName);
                 cannotDynamicLoad = true;
             }
+            proposals.add(proposed);
+        }
+        List<ActivationPlan.Step> steps = new ArrayList<ActivationPlan.Step>();
+        List<PluginManifest> toLoad = new ArrayList<PluginManifest>();
+        for (PluginManifest proposed : proposals) {
+            final String shortName = proposed.getShortName();
+            // lazily listed plugins are only staged when the plan is applied
+            final File archive = proposed.getArchive();
+            // the legacy .hpi files will be renamed over the .jpi files when the plan is applied
+            final File legacyFile = new File(rootDir, shortName + ".hpi");
+            final File file = legacyFile.exists() ? legacyFile : new File(rootDir, shortName + ".jpi");
+            final boolean pinned = new File(rootDir, shortName + ".jpi.pinned").exists()
+                    || new File(rootDir, shortName + ".hpi.pinned").exists();
+
+            // update file if:
+            //  - no file exists today
+            //  - bundled version and current version differs (by timestamp, unknown until staged), and the file isn't
+            //    pinned.
+            final long lastModified = archive == null ? -1L : archive.lastModified();
+            final boolean install = !file.exists() || (file.lastModified() != lastModified && !pinned);
+            steps.add(new ActivationPlan.Step(shortName, proposed.getVersion(), proposed.getDigest(),
+                    archive == null ? null : archive.getName(), lastModified, install,
+                    pluginsToEnable.contains(shortName)));
+            if (install) {
+                toLoad.add(proposed);
+            }
+        }
+
+        List<List<String>> loadLevels = new ArrayList<List<String>>();
+        if (!cannotDynamicLoad) {
+            LOGGER.log(Level.FINE, "Sorting plugins to determine loading order...");
+            try {
+                for (List<PluginManifest> level : graph.sort(toLoad).getLevels()) {
+                    List<String> names = new ArrayList<String>(level.size());
+                    for (PluginManifest m : level) {
+                        names.add(m.getShortName());
+                    }
+                    loadLevels.add(names);
+                }
+            } catch (DependencyGraph.CycleDetectedException e) {
+                LOGGER.log(Level.WARNING, "Cyclic reference detected amongst bundled plugins: " + e.getCycle(), e);
+                cannotDynamicLoad = true;
+                loadLevels.clear();
+            }
+        }
+        statistics.phase(RefreshStatistics.Phase.RESOLUTION, System.nanoTime() - phaseStart);
+        final ActivationPlan plan = new ActivationPlan(token, steps, loadLevels, cannotDynamicLoad, skipped);
+        LOGGER.log(Level.FINE, "Activation plan: {0}", plan);
+        return plan;
+    }
+
+    /**
+     * Carries out an {@link ActivationPlan}: stages the plugins to install, installs the archives into the plugins
+     * directory, flags the plugins whose dependencies cannot be satisfied as disabled, and dynamically loads the
+     * plugins unless a restart is required. The staging area is brought up to date first, which also removes the
+     * archives that no source provides any more. A plugin whose archive can no longer be found with the planned
+     * digest is not installed. Plans are applied one at a time and never while a refresh is running.
+     *
+     * @param plan the plan.
+     * @return the result of applying the plan.
+     * @since 1.2
+     */
+    public RefreshResult apply(@Nonnull ActivationPlan plan) {
+        final Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins == null || plan.isEmpty()) {
+            return new RefreshResult(false, Collections.<String>emptyList(), Collections.<String>emptyList(),
+                    plan.getSkipped());
+        }
+        synchronized (refreshRunLock) {
+            return apply(jenkins, plan, listPlugins());
+        }
+    }
+
+    /**
+     * Carries out an {@link ActivationPlan}.
+     *
+     * @param jenkins   the Jenkins instance.
+     * @param plan      the plan.
+     * @param available the manifests of the optional plugins, as listed into the staging area.
+     * @return the result of applying the plan.
+     */
+    private RefreshResult apply(Jenkins jenkins, ActivationPlan plan, List<PluginManifest> available) {
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        final PluginManager pm = jenkins.getPluginManager();
+        final StagingStore store = new StagingStore(new File(jenkins.root, OPTIONAL_PLUGIN_DIR));
+        final Map<String, PluginManifest> byShortName = new HashMap<String, PluginManifest>();
+        for (PluginManifest manifest : available) {
+            byShortName.put(manifest.getShortName(), manifest);
+        }
+        // only now are any lazily listed plugins worth staging, which is not part of the installation time
+        final List<PluginManifest> toStage = new ArrayList<PluginManifest>();
+        for (ActivationPlan.Step step : plan.getSteps()) {
+            final PluginManifest manifest = byShortName.get(step.getShortName());
+            if (step.isInstall() && manifest != null && manifest.getVersion().equals(step.getVersion())) {
+                toStage.add(manifest);
+            }
+        }
+        stageSelected(toStage);
+        long phaseStart = System.nanoTime();
+        Map<String, File> newPlugins = new HashMap<String, File>();
+        Set<String> disabled = new TreeSet<String>();
+        for (ActivationPlan.Step step : plan.getSteps()) {
+            final String shortName = step.getShortName();
             String fileName = shortName + ".jpi";
             String legacyName = fileName.replace(".jpi", ".hpi");
             File file = new File(pm.rootDir, fileName);
@@ -411,14 +1430,20 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
                         e);
             }
 
-            // update file if:
-            //  - no file exists today
-            //  - bundled version and current version differs (by timestamp), and the file isn't pinned.
-            final long lastModified = entry.getValue().lastModified();
-            if (!file.exists() || (file.lastModified() != lastModified && !pinFile.exists())) {
+            if (step.isInstall()) {
+                final File archive = archiveOf(step, store, byShortName.get(shortName));
                 try {
-                    FileUtils.copyFile(entry.getValue(), file);
-                    if (lastModified != -1 && !file.setLastModified(lastModified)) {
+                    if (archive == null) {
+                        throw new IOException("The planned archive of " + step + " is no longer staged");
+                    }
+                    final long lastModified = step.getLastModified() == -1 ? archive.lastModified()
+                            : step.getLastModified();
+                    // an earlier refresh may still be exploding the archive we are about to replace
+                    exploder.await(file);
+                    ArchiveInstaller.install(archive, file);
+                    // when installed as a hard link the timestamp is shared with the staged archive already
+                    if (lastModified != -1 && file.lastModified() != lastModified
+                            && !file.setLastModified(lastModified)) {
                         LOGGER.log(Level.WARNING, "Could not set last modified timestamp on {0}.jpi", shortName);
                     }
                     // lastModified is set for two reasons:
@@ -430,7 +1455,8 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
                     LOGGER.log(Level.WARNING, String.format("Could not write %s.jpi", shortName), e);
                 }
             }
-            if (!pluginsToEnable.contains(shortName)) {
+            if (!step.isEnable()) {
+                disabled.add(shortName);
                 try {
                     new FileOutputStream(disableFile).close();
                 } catch (IOException e) {
@@ -438,83 +1464,172 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
                 }
             }
         }
+        statistics.phase(RefreshStatistics.Phase.INSTALLATION, System.nanoTime() - phaseStart);
 
-        if (cannotDynamicLoad) {
-            return true;
+        if (plan.isRestartRequired()) {
+            preExplode(pm, newPlugins.values());
+            return new RefreshResult(true, Collections.<String>emptyList(), disabled, plan.getSkipped());
         }
 
-        LOGGER.log(Level.FINE, "Sorting plugins to determine loading order...");
-        // now we need to sort plugins and try and dynamically load them
-        final List<PluginWrapper> plugins = new ArrayList<PluginWrapper>(newPlugins.size());
-        for (File p : newPlugins.values()) {
-            try {
-                plugins.add(ps.createPluginWrapper(p));
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING, "IO exception processing " + p, e);
-                cannotDynamicLoad = true;
+        phaseStart = System.nanoTime();
+        LOGGER.log(Level.FINE, "Plugin load order: {0}", plan.getLoadOrder());
+        LOGGER.log(Level.INFO, "Starting dynamic loading of optional bundled plugins");
+        final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+        boolean cannotDynamicLoad = false;
+        if (DYNAMIC_LOAD_THREADS > 1) {
+            cannotDynamicLoad = !dynamicLoadByLevel(pm, plan, newPlugins, loaded);
+        } else {
+            for (ActivationPlan.Step plugin : plan.getLoadOrderSteps()) {
+                if (!dynamicLoad(pm, plugin, newPlugins.get(plugin.getShortName()))) {
+                    cannotDynamicLoad = true;
+                    break;
+                }
+                loaded.add(plugin.getShortName());
             }
         }
+        statistics.phase(RefreshStatistics.Phase.DYNAMIC_LOAD, System.nanoTime() - phaseStart);
+        LOGGER.log(Level.INFO, "Finished dynamic loading of optional bundled plugins, restart required {0}",
+                cannotDynamicLoad);
         if (cannotDynamicLoad) {
-            return true;
+            final Map<String, File> remaining = new HashMap<String, File>(newPlugins);
+            remaining.keySet().removeAll(loaded);
+            preExplode(pm, remaining.values());
         }
-        CyclicGraphDetector<PluginWrapper> cgd = new CyclicGraphDetector<PluginWrapper>() {
-            @Override
-            protected List<PluginWrapper> getEdges(PluginWrapper p) {
-                List<PluginWrapper> next = new ArrayList<PluginWrapper>();
-                addTo(p.getDependencies(), next);
-                addTo(p.getOptionalDependencies(), next);
-                return next;
+        return new RefreshResult(cannotDynamicLoad, loaded, disabled, plan.getSkipped());
+    }
+
+    /**
+     * Finds the staged archive of a plugin in an {@link ActivationPlan}.
+     *
+     * @param step      the plugin.
+     * @param store     the staging store.
+     * @param available the manifest of the optional plugin with the same short name or {@code null} if none.
+     * @return the staged archive or {@code null} if the planned archive is not staged.
+     */
+    @CheckForNull
+    private static File archiveOf(ActivationPlan.Step step, StagingStore store,
+                                  @CheckForNull PluginManifest available) {
+        final String digest = step.getDigest();
+        if (digest != null) {
+            final File archive = store.get(digest, step.getFileName());
+            if (archive != null) {
+                return archive;
             }
+        }
+        // the plugin was read straight from its source when planned, so only the short name and version are known
+        if (available != null && available.getVersion().equals(step.getVersion())
+                && (digest == null || digest.equals(available.getDigest()))) {
+            return available.getArchive();
+        }
+        return null;
+    }
+
+    /**
+     * Returns the timings and counters for the activation of optional plugins.
+     *
+     * @return the timings and counters for the activation of optional plugins.
+     * @since 1.2
+     */
+    public RefreshStatistics getStatistics() {
+        return RefreshStatistics.get();
+    }
 
-            private void addTo(List<PluginWrapper.Dependency> dependencies, List<PluginWrapper> r) {
-                for (PluginWrapper.Dependency d : dependencies) {
-                    for (PluginWrapper p : plugins) {
-                        if (p.getShortName().equals(d.shortName)) {
-                            r.add(p);
+    /**
+     * Dynamically loads the plugins one dependency level at a time, loading the plugins within each level
+     * concurrently. All the plugins in a level are allowed to finish before the next level is started and if any
+     * plugin in a level fails to load then no further levels are started.
+     *
+     * @param pm         the plugin manager.
+     * @param plan       the plan.
+     * @param newPlugins the installed archives keyed by short name.
+     * @param loaded     the short names of the plugins that have been loaded, must be thread safe.
+     * @return {@code true} if all the plugins were loaded, {@code false} if a restart is required.
+     */
+    private boolean dynamicLoadByLevel(final PluginManager pm, ActivationPlan plan,
+                                       final Map<String, File> newPlugins, final List<String> loaded) {
+        final ExecutorService executor = Executors.newFixedThreadPool(DYNAMIC_LOAD_THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), "PluginHelper.dynamicLoad"));
+        try {
+            for (List<ActivationPlan.Step> level : plan.getLoadLevelSteps()) {
+                LOGGER.log(Level.FINE, "Dynamic loading level: {0}", level);
+                final List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(level.size());
+                for (final ActivationPlan.Step plugin : level) {
+                    // load as if on this thread, as when loading one plugin at a time
+                    futures.add(executor.submit(ContextCallable.of(new Callable<Boolean>() {
+                        public Boolean call() {
+                            if (dynamicLoad(pm, plugin, newPlugins.get(plugin.getShortName()))) {
+                                loaded.add(plugin.getShortName());
+                                return true;
+                            }
+                            return false;
                         }
+                    })));
+                }
+                // wait for the whole level, abandoning a plugin part way through loading would be worse than waiting
+                boolean success = true;
+                for (int i = 0; i < futures.size(); i++) {
+                    final ActivationPlan.Step plugin = level.get(i);
+                    try {
+                        if (!futures.get(i).get()) {
+                            success = false;
+                        }
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.WARNING,
+                                String.format("Failed to dynamic load plugin %s version %s", plugin.getShortName(),
+                                        plugin.getVersion()), e.getCause());
+                        success = false;
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.WARNING,
+                                String.format("Interrupted while trying to dynamic load plugin %s version %s",
+                                        plugin.getShortName(), plugin.getVersion()), e);
+                        Thread.currentThread().interrupt();
+                        return false;
                     }
                 }
+                if (!success) {
+                    return false;
+                }
             }
+            return true;
+        } finally {
+            executor.shutdown();
+        }
+    }
 
-        };
-        try {
-            cgd.run(plugins);
-        } catch (CyclicGraphDetector.CycleDetectedException e) {
-            LOGGER.log(Level.WARNING, "Cyclic reference detected amongst bundled plugins: " + plugins, e);
-            cannotDynamicLoad = true;
+    /**
+     * Dynamically loads a single plugin.
+     *
+     * @param pm      the plugin manager.
+     * @param plugin  the plugin.
+     * @param archive the installed archive or {@code null} if it could not be installed.
+     * @return {@code true} if the plugin was loaded, {@code false} if a restart is required.
+     */
+    private static boolean dynamicLoad(PluginManager pm, ActivationPlan.Step plugin, File archive) {
+        if (archive == null) {
+            // the install failed, so neither this plugin nor anything that depends on it can be loaded now
+            LOGGER.log(Level.WARNING, String.format("Cannot dynamic load plugin %s version %s as it was not installed",
+                    plugin.getShortName(), plugin.getVersion()));
+            return false;
         }
-        LOGGER.log(Level.FINE, "Sorted plugin load order: {0}", cgd.getSorted());
-        LOGGER.log(Level.INFO, "Starting dynamic loading of optional bundled plugins");
-        for (PluginWrapper plugin : cgd.getSorted()) {
-            File archive = newPlugins.get(plugin.getShortName());
-            if (archive == null) {
-                // cannot happen, we put only plugins from newPlugins into the list and sorting should never
-                // add, so the sorting should be a 1:1 mapping. We have this NPE check for safety only.
-                continue;
-            }
-            try {
-                pm.dynamicLoad(archive);
-            } catch (IOException e) {
-                LOGGER.log(Level.WARNING,
-                        String.format("Failed to dynamic load plugin %s version %s", plugin.getShortName(),
-                                plugin.getVersion()), e);
-                cannotDynamicLoad = true;
-                break;
-            } catch (InterruptedException e) {
-                LOGGER.log(Level.WARNING, String.format("Interrupted while trying to dynamic load plugin %s version %s",
-                        plugin.getShortName(), plugin.getVersion()), e);
-                cannotDynamicLoad = true;
-                break;
-            } catch (RestartRequiredException e) {
-                LOGGER.log(Level.WARNING,
-                        String.format("Plugin %s version %s does not support dynamic loading", plugin.getShortName(),
-                                plugin.getVersion()), e);
-                cannotDynamicLoad = true;
-                break;
-            }
+        final long start = System.nanoTime();
+        try {
+            pm.dynamicLoad(archive);
+            return true;
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING,
+                    String.format("Failed to dynamic load plugin %s version %s", plugin.getShortName(),
+                            plugin.getVersion()), e);
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, String.format("Interrupted while trying to dynamic load plugin %s version %s",
+                    plugin.getShortName(), plugin.getVersion()), e);
+        } catch (RestartRequiredException e) {
+            LOGGER.log(Level.WARNING,
+                    String.format("Plugin %s version %s does not support dynamic loading", plugin.getShortName(),
+                            plugin.getVersion()), e);
+        } finally {
+            RefreshStatistics.get().dynamicLoad(plugin.getShortName(), System.nanoTime() - start);
         }
-        LOGGER.log(Level.INFO, "Finished dynamic loading of optional bundled plugins, restart required {0}", cannotDynamicLoad);
-        return cannotDynamicLoad;
+        return false;
     }
 
     /**
@@ -548,19 +1663,85 @@ public class PluginHelper extends Descriptor<PluginHelper> implements Describabl
         return null;
     }
 
-    private static class ExtractedPluginMetadata {
-        private final String shortName;
-        private final String digest;
-        private final long length;
+    /**
+     * A requested refresh, run by whichever thread gets to it first.
+     */
+    private final class RefreshTask extends FutureTask<RefreshResult> {
+        /**
+         * Constructor.
+         *
+         * @param call the refresh to run.
+         */
+        private RefreshTask(RefreshCall call) {
+            super(call);
+            call.task = this;
+        }
+    }
+
+    /**
+     * Runs a {@link RefreshTask}, which stops being {@link #pendingRefresh} as soon as it holds
+     * {@link #refreshRunLock}.
+     */
+    private final class RefreshCall implements Callable<RefreshResult> {
+        /**
+         * The task that this call belongs to.
+         */
+        private RefreshTask task;
 
-        public ExtractedPluginMetadata(File archive) throws IOException {
-            this.digest = Util.getDigestOf(archive);
-            final Jenkins jenkins = Jenkins.getInstance();
-            this.shortName = jenkins == null
-                    ? FilenameUtils.getBaseName(archive.getName())
-                    : jenkins.getPluginManager().getPluginStrategy().getShortName(archive);
-            this.length = archive.length();
+        /**
+         * {@inheritDoc}
+         */
+        public RefreshResult call() {
+            synchronized (refreshRunLock) {
+                synchronized (refreshLock) {
+                    if (pendingRefresh == task) {
+                        // requests from now on may be for changes that this refresh misses so need a follow-up
+                        pendingRefresh = null;
+                    }
+                }
+                return doRefresh();
+            }
         }
     }
 
+    /**
+     * What a {@link PluginSource} provided the last time we listed the plugins.
+     */
+    private static final class SourceState {
+        /**
+         * The change token of the source or {@code null} if the source must be re-examined next time.
+         */
+        private final String token;
+        /**
+         * The manifests of the staged plugins keyed by {@link URL#toExternalForm()}.
+         */
+        private final Map<String, PluginManifest> manifests;
+
+        /**
+         * Constructor.
+         *
+         * @param token     the change token of the source.
+         * @param manifests the manifests of the staged plugins.
+         */
+        private SourceState(String token, Map<String, PluginManifest> manifests) {
+            this.token = token;
+            this.manifests = manifests;
+        }
+
+        /**
+         * Checks that the staged plugins are all still present in the staging area.
+         *
+         * @return {@code true} if the staged plugins are all still present.
+         */
+        private boolean isStaged() {
+            for (PluginManifest manifest : manifests.values()) {
+                // lazily listed plugins have nothing staged to check
+                final File archive = manifest.getArchive();
+                if (archive != null && !archive.isFile()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,430 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import hudson.XmlFile;
+import hudson.util.XStream2;
+import jenkins.YesNoMaybe;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A precomputed index of the plugin archives offered by a {@link PluginSource}, generated when the archives are
+ * bundled and shipped next to them as {@link #FILE_NAME}. The index records everything {@link PluginHelper} needs
+ * to decide which plugins to install and whether they are already staged, so the archives themselves only need to be
+ * read when a plugin is actually staged.
+ *
+ * @since 1.2
+ */
+public final class PluginIndex {
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(PluginIndex.class.getName());
+
+    /**
+     * The name of the index file next to the plugin archives.
+     */
+    public static final String FILE_NAME = "index.xml";
+
+    /**
+     * The current format version, indexes with any other version are ignored.
+     */
+    static final int CURRENT_VERSION = 1;
+
+    /**
+     * The XStream instance used to read and write indexes.
+     */
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("optional-plugin-index", PluginIndex.class);
+        XSTREAM.alias("plugin", Entry.class);
+    }
+
+    /**
+     * The format version.
+     */
+    private final int version;
+
+    /**
+     * The entries in archive file name order.
+     */
+    private final List<Entry> entries;
+
+    /**
+     * The entries keyed by archive file name, only created on demand.
+     */
+    private transient volatile Map<String, Entry> byFileName;
+
+    /**
+     * Constructor.
+     *
+     * @param entries the entries.
+     */
+    public PluginIndex(@Nonnull Collection<Entry> entries) {
+        this.version = CURRENT_VERSION;
+        this.entries = new ArrayList<Entry>(entries);
+    }
+
+    /**
+     * Reads an index.
+     *
+     * @param resource the index.
+     * @return the index or {@code null} if there is no usable index. Entries that are missing any of the details
+     * {@link PluginHelper} relies on are logged and left out.
+     */
+    @CheckForNull
+    public static PluginIndex read(@Nonnull URL resource) {
+        try {
+            final InputStream stream = resource.openStream();
+            try {
+                final Object o = XSTREAM.fromXML(stream);
+                if (!(o instanceof PluginIndex)) {
+                    LOGGER.log(Level.INFO, "Ignoring unexpected content in {0}", resource);
+                    return null;
+                }
+                final PluginIndex index = (PluginIndex) o;
+                if (index.version != CURRENT_VERSION) {
+                    LOGGER.log(Level.INFO, "Ignoring {0} as it has version {1} and version {2} is required",
+                            new Object[]{resource, index.version, CURRENT_VERSION});
+                    return null;
+                }
+                // XStream does not go through the constructor, so a hand edited index can omit anything
+                final List<Entry> valid = new ArrayList<Entry>();
+                for (Entry entry : index.getEntries()) {
+                    if (entry != null && entry.isValid()) {
+                        valid.add(entry);
+                    } else {
+                        LOGGER.log(Level.WARNING, "Ignoring incomplete entry {0} in {1}",
+                                new Object[]{entry, resource});
+                    }
+                }
+                return valid.size() == index.getEntries().size() ? index : new PluginIndex(valid);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        } catch (FileNotFoundException e) {
+            LOGGER.log(Level.FINE, "No optional plugin index at {0}", resource);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read " + resource + ", optional plugins will be read directly", e);
+        } catch (RuntimeException e) {
+            // XStream reports a corrupt file with runtime exceptions
+            LOGGER.log(Level.WARNING, "Could not parse " + resource + ", optional plugins will be read directly", e);
+        }
+        return null;
+    }
+
+    /**
+     * Writes the index.
+     *
+     * @param file the file to write.
+     * @throws IOException if the index could not be written.
+     */
+    public void write(@Nonnull File file) throws IOException {
+        new XmlFile(XSTREAM, file).write(this);
+    }
+
+    /**
+     * Returns the entries.
+     *
+     * @return the entries.
+     */
+    @Nonnull
+    public List<Entry> getEntries() {
+        return entries == null ? Collections.<Entry>emptyList() : Collections.unmodifiableList(entries);
+    }
+
+    /**
+     * Returns the entry for a plugin archive.
+     *
+     * @param resource the plugin archive.
+     * @return the entry or {@code null} if the archive is not in the index.
+     */
+    @CheckForNull
+    public Entry get(@Nonnull URL resource) {
+        return get(FilenameUtils.getName(resource.getPath()));
+    }
+
+    /**
+     * Returns the entry for a plugin archive.
+     *
+     * @param fileName the file name of the plugin archive.
+     * @return the entry or {@code null} if the archive is not in the index.
+     */
+    @CheckForNull
+    public Entry get(@Nonnull String fileName) {
+        Map<String, Entry> result = byFileName;
+        if (result == null) {
+            result = new HashMap<String, Entry>();
+            for (Entry entry : getEntries()) {
+                result.put(entry.getFileName(), entry);
+            }
+            byFileName = result;
+        }
+        return result.get(fileName);
+    }
+
+    /**
+     * The index entry of a single plugin archive.
+     */
+    public static final class Entry {
+        /**
+         * The file name of the plugin archive.
+         */
+        private final String fileName;
+        /**
+         * The short name of the plugin.
+         */
+        private final String shortName;
+        /**
+         * The version of the plugin.
+         */
+        private final String version;
+        /**
+         * The mandatory dependencies of the plugin as {@code shortName:version}.
+         */
+        private final List<String> dependencies;
+        /**
+         * The optional dependencies of the plugin as {@code shortName:version}.
+         */
+        private final List<String> optionalDependencies;
+        /**
+         * Whether the plugin supports dynamic loading.
+         */
+        private final YesNoMaybe supportsDynamicLoad;
+        /**
+         * The length of the plugin archive.
+         */
+        private final long size;
+        /**
+         * The digest of the plugin archive, as computed by {@link StagingStore}.
+         */
+        private final String digest;
+
+        /**
+         * Constructor.
+         *
+         * @param fileName the file name of the plugin archive.
+         * @param manifest the manifest of the plugin archive, which must have a digest.
+         * @param size     the length of the plugin archive.
+         */
+        public Entry(@Nonnull String fileName, @Nonnull PluginManifest manifest, long size) {
+            if (manifest.getDigest() == null) {
+                throw new IllegalArgumentException("The digest of " + manifest + " is required");
+            }
+            this.fileName = fileName;
+            this.shortName = manifest.getShortName();
+            this.version = manifest.getVersion();
+            this.dependencies = toStrings(manifest.getDependencies());
+            this.optionalDependencies = toStrings(manifest.getOptionalDependencies());
+            this.supportsDynamicLoad = manifest.supportsDynamicLoad();
+            this.size = size;
+            this.digest = manifest.getDigest();
+        }
+
+        /**
+         * Converts dependencies into their index form.
+         *
+         * @param dependencies the dependencies.
+         * @return the dependencies as {@code shortName:version}.
+         */
+        private static List<String> toStrings(List<PluginWrapper.Dependency> dependencies) {
+            List<String> result = new ArrayList<String>(dependencies.size());
+            for (PluginWrapper.Dependency d : dependencies) {
+                // the version is recorded without any OSGi properties, optional ones are restored from the list
+                result.add(d.shortName + ":" + StringUtils.substringBefore(d.version, ";"));
+            }
+            return result;
+        }
+
+        /**
+         * Converts dependencies from their index form.
+         *
+         * @param dependencies the dependencies as {@code shortName:version}.
+         * @param optional     whether the dependencies are optional.
+         * @return the dependencies.
+         */
+        private static List<PluginWrapper.Dependency> toDependencies(@CheckForNull List<String> dependencies,
+                                                                     boolean optional) {
+            if (dependencies == null) {
+                return Collections.emptyList();
+            }
+            List<PluginWrapper.Dependency> result = new ArrayList<PluginWrapper.Dependency>(dependencies.size());
+            for (String d : dependencies) {
+                result.add(new PluginWrapper.Dependency(optional ? d + ";resolution:=optional" : d));
+            }
+            return result;
+        }
+
+        /**
+         * Returns the file name of the plugin archive.
+         *
+         * @return the file name of the plugin archive.
+         */
+        @Nonnull
+        public String getFileName() {
+            return fileName;
+        }
+
+        /**
+         * Returns the short name of the plugin.
+         *
+         * @return the short name of the plugin.
+         */
+        @Nonnull
+        public String getShortName() {
+            return shortName;
+        }
+
+        /**
+         * Returns the version of the plugin.
+         *
+         * @return the version of the plugin.
+         */
+        @Nonnull
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * Returns the mandatory dependencies of the plugin.
+         *
+         * @return the mandatory dependencies of the plugin.
+         */
+        @Nonnull
+        public List<PluginWrapper.Dependency> getDependencies() {
+            return toDependencies(dependencies, false);
+        }
+
+        /**
+         * Returns the optional dependencies of the plugin.
+         *
+         * @return the optional dependencies of the plugin.
+         */
+        @Nonnull
+        public List<PluginWrapper.Dependency> getOptionalDependencies() {
+            return toDependencies(optionalDependencies, true);
+        }
+
+        /**
+         * Returns whether the plugin supports dynamic loading.
+         *
+         * @return whether the plugin supports dynamic loading.
+         */
+        @Nonnull
+        public YesNoMaybe supportsDynamicLoad() {
+            return supportsDynamicLoad == null ? YesNoMaybe.MAYBE : supportsDynamicLoad;
+        }
+
+        /**
+         * Returns the length of the plugin archive.
+         *
+         * @return the length of the plugin archive.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the digest of the plugin archive.
+         *
+         * @return the digest of the plugin archive.
+         */
+        @Nonnull
+        public String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Checks that the entry has everything needed to describe the plugin, which the constructor ensures but an
+         * index read from XML may not.
+         *
+         * @return {@code true} if the entry is complete.
+         */
+        boolean isValid() {
+            if (StringUtils.isBlank(fileName) || StringUtils.isBlank(shortName) || StringUtils.isBlank(version)
+                    || StringUtils.isBlank(digest)) {
+                return false;
+            }
+            return isValid(dependencies) && isValid(optionalDependencies);
+        }
+
+        /**
+         * Checks that dependencies in their index form can be converted.
+         *
+         * @param dependencies the dependencies as {@code shortName:version}.
+         * @return {@code true} if every dependency has a short name and version.
+         */
+        private static boolean isValid(@CheckForNull List<String> dependencies) {
+            if (dependencies != null) {
+                for (String d : dependencies) {
+                    if (d == null || d.indexOf(':') < 1) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Creates the manifest of the plugin from the index, without reading the plugin archive.
+         *
+         * @param archive the staged archive or {@code null} if not staged yet.
+         * @param stager  stages the archive when it is needed, only used if {@code archive} is {@code null}.
+         * @return the plugin manifest.
+         */
+        @Nonnull
+        PluginManifest toManifest(@CheckForNull File archive, @CheckForNull PluginManifest.Stager stager) {
+            return PluginManifest.of(this, archive, stager);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return fileName + " (" + shortName + ":" + version + ")";
+        }
+    }
+}
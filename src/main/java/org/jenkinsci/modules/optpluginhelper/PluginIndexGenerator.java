@@ -0,0 +1,259 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.VersionNumber;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates the {@link PluginIndex} for a directory of plugin archives when they are bundled, so that the archives do
+ * not need to be inspected every time Jenkins starts. The archives are read with the same manifest parsing that
+ * {@link PluginHelper} uses and the index is only written if the plugins form a valid dependency graph. Run as
+ * <pre>
+ * java -cp ... org.jenkinsci.modules.optpluginhelper.PluginIndexGenerator [-threads N] [-force] DIR [INDEX]
+ * </pre>
+ * where {@code INDEX} defaults to {@code DIR/index.xml}.
+ *
+ * @since 1.2
+ */
+public final class PluginIndexGenerator {
+
+    /**
+     * Accepts plugin archives.
+     */
+    private static final FileFilter ARCHIVES = new FileFilter() {
+        public boolean accept(File file) {
+            final String lowerCaseName = file.getName().toLowerCase();
+            return file.isFile() && (lowerCaseName.endsWith(".hpi") || lowerCaseName.endsWith(".jpi"));
+        }
+    };
+
+    /**
+     * Utility class.
+     */
+    private PluginIndexGenerator() {
+    }
+
+    /**
+     * Command line entry point.
+     *
+     * @param args {@code [-threads N] [-force] DIR [INDEX]}.
+     * @throws Exception if the index could not be generated.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean force = false;
+        final List<String> arguments = new ArrayList<String>(Arrays.asList(args));
+        while (!arguments.isEmpty() && arguments.get(0).startsWith("-")) {
+            final String option = arguments.remove(0);
+            if ("-force".equals(option)) {
+                force = true;
+            } else if ("-threads".equals(option) && !arguments.isEmpty()) {
+                threads = Integer.parseInt(arguments.remove(0));
+            } else {
+                usage();
+                return;
+            }
+        }
+        if (arguments.isEmpty() || arguments.size() > 2) {
+            usage();
+            return;
+        }
+        final File directory = new File(arguments.get(0));
+        final File file = arguments.size() > 1
+                ? new File(arguments.get(1))
+                : new File(directory, PluginIndex.FILE_NAME);
+        final List<PluginManifest> manifests = read(directory, threads);
+        final List<String> problems = validate(manifests);
+        for (String problem : problems) {
+            System.err.println(problem);
+        }
+        if (!problems.isEmpty() && !force) {
+            System.err.println("Not writing " + file + ", use -force to write it anyway");
+            System.exit(1);
+            return;
+        }
+        index(manifests).write(file);
+        System.out.println("Indexed " + manifests.size() + " plugins from " + directory + " into " + file);
+    }
+
+    /**
+     * Prints the command line usage and exits.
+     */
+    private static void usage() {
+        System.err.println("Usage: java " + PluginIndexGenerator.class.getName()
+                + " [-threads N] [-force] DIR [INDEX]");
+        System.err.println("  Writes the index of the plugin archives in DIR to INDEX (default DIR/"
+                + PluginIndex.FILE_NAME + ")");
+        System.exit(2);
+    }
+
+    /**
+     * Generates the index of the plugin archives in a directory.
+     *
+     * @param directory the directory.
+     * @param threads   the number of archives to read in parallel.
+     * @return the index.
+     * @throws IOException if the archives could not be read.
+     */
+    @Nonnull
+    public static PluginIndex generate(@Nonnull File directory, int threads) throws IOException {
+        return index(read(directory, threads));
+    }
+
+    /**
+     * Creates the index of some plugin archives.
+     *
+     * @param manifests the manifests of the plugin archives, which must have digests.
+     * @return the index.
+     */
+    @Nonnull
+    private static PluginIndex index(@Nonnull List<PluginManifest> manifests) {
+        final List<PluginIndex.Entry> entries = new ArrayList<PluginIndex.Entry>(manifests.size());
+        for (PluginManifest manifest : manifests) {
+            final File archive = manifest.getArchive();
+            entries.add(new PluginIndex.Entry(archive.getName(), manifest, archive.length()));
+        }
+        return new PluginIndex(entries);
+    }
+
+    /**
+     * Reads the plugin archives in a directory, computing the digest of each.
+     *
+     * @param directory the directory.
+     * @param threads   the number of archives to read in parallel.
+     * @return the manifests of the plugin archives, in file name order.
+     * @throws IOException if the archives could not be read.
+     */
+    @Nonnull
+    static List<PluginManifest> read(@Nonnull File directory, int threads) throws IOException {
+        final File[] archives = directory.listFiles(ARCHIVES);
+        if (archives == null) {
+            throw new IOException(directory + " is not a directory");
+        }
+        Arrays.sort(archives);
+        final List<PluginManifest> result = new ArrayList<PluginManifest>(archives.length);
+        if (archives.length == 0) {
+            return result;
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, archives.length)),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PluginIndexGenerator"));
+        try {
+            final List<Future<PluginManifest>> futures = new ArrayList<Future<PluginManifest>>(archives.length);
+            for (final File archive : archives) {
+                futures.add(executor.submit(new Callable<PluginManifest>() {
+                    public PluginManifest call() throws IOException {
+                        return read(archive);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    result.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    throw new IOException("Could not read " + archives[i], e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading " + archives[i], e);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return result;
+    }
+
+    /**
+     * Reads a plugin archive, computing the same digest as {@link StagingStore}.
+     *
+     * @param archive the plugin archive.
+     * @return the manifest of the plugin archive.
+     * @throws IOException if the archive could not be read.
+     */
+    @Nonnull
+    private static PluginManifest read(@Nonnull File archive) throws IOException {
+        final MessageDigest md5 = VerificationLevel.md5();
+        ArchiveDigester.read(archive, null, md5, null);
+        return PluginManifest.read(archive, Util.toHexString(md5.digest()));
+    }
+
+    /**
+     * Validates that a set of plugins can be loaded together: each short name is only provided once, the plugins
+     * that are depended on are new enough and there are no dependency cycles. Dependencies on plugins outside the
+     * set are assumed to be satisfied by the installed plugins.
+     *
+     * @param manifests the plugins.
+     * @return the problems found, empty if the plugins are valid.
+     */
+    @Nonnull
+    static List<String> validate(@Nonnull List<PluginManifest> manifests) {
+        final List<String> problems = new ArrayList<String>();
+        final Map<String, PluginManifest> byShortName = new HashMap<String, PluginManifest>();
+        for (PluginManifest manifest : manifests) {
+            final PluginManifest existing = byShortName.put(manifest.getShortName(), manifest);
+            if (existing != null) {
+                problems.add(String.format("%s is provided by both %s and %s", manifest.getShortName(),
+                        existing.getArchive(), manifest.getArchive()));
+            }
+        }
+        for (PluginManifest manifest : manifests) {
+            final List<PluginWrapper.Dependency> dependencies =
+                    new ArrayList<PluginWrapper.Dependency>(manifest.getDependencies());
+            dependencies.addAll(manifest.getOptionalDependencies());
+            for (PluginWrapper.Dependency d : dependencies) {
+                final PluginManifest provider = byShortName.get(d.shortName);
+                if (provider != null && provider.getVersionNumber().isOlderThan(new VersionNumber(d.version))) {
+                    problems.add(String.format("%s depends on %s version %s but only version %s is provided",
+                            manifest, d.shortName, d.version, provider.getVersion()));
+                }
+            }
+        }
+        try {
+            DependencyGraph.build(manifests).sort(manifests);
+        } catch (DependencyGraph.CycleDetectedException e) {
+            problems.add(e.getMessage());
+        }
+        return problems;
+    }
+}
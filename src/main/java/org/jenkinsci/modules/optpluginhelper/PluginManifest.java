@@ -0,0 +1,491 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginStrategy;
+import hudson.PluginWrapper;
+import hudson.util.VersionNumber;
+import jenkins.YesNoMaybe;
+import jenkins.model.Jenkins;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * A lightweight description of a plugin archive, read from just the {@code META-INF/MANIFEST.MF} entry (or taken
+ * from a {@link PluginIndex}) so that neither the archive needs to be exploded nor a class loader created. When
+ * optional plugins are staged lazily the manifest is read straight from the source and the archive is only staged
+ * once it is needed, see {@link #stage()}.
+ * <p>
+ * The description of the plugin (short name, version, dependencies and dynamic loading support) is immutable. The
+ * staging state is not: the archive and digest are filled in by {@link #stage()} and the {@link PluginWrapper} is
+ * created on demand by {@link #getPluginWrapper()}. Both methods are synchronized and the archive and digest are
+ * published safely, so instances can be shared between threads, but callers must not assume that
+ * {@link #getArchive()} or {@link #getDigest()} return the same value every time.
+ *
+ * @since 1.2
+ */
+public final class PluginManifest {
+
+    /**
+     * The plugin archive or {@code null} if not staged yet.
+     */
+    @CheckForNull
+    private volatile File archive;
+
+    /**
+     * The short name of the plugin.
+     */
+    @Nonnull
+    private final String shortName;
+
+    /**
+     * The version of the plugin.
+     */
+    @Nonnull
+    private final String version;
+
+    /**
+     * The parsed version of the plugin.
+     */
+    @Nonnull
+    private final VersionNumber versionNumber;
+
+    /**
+     * The mandatory dependencies of the plugin.
+     */
+    @Nonnull
+    private final List<PluginWrapper.Dependency> dependencies;
+
+    /**
+     * The optional dependencies of the plugin.
+     */
+    @Nonnull
+    private final List<PluginWrapper.Dependency> optionalDependencies;
+
+    /**
+     * Whether the plugin supports dynamic loading.
+     */
+    @Nonnull
+    private final YesNoMaybe supportsDynamicLoad;
+
+    /**
+     * The digest of the plugin archive, if known.
+     */
+    @CheckForNull
+    private volatile String digest;
+
+    /**
+     * Stages the archive on demand or {@code null} if the archive is already staged.
+     */
+    @CheckForNull
+    private Stager stager;
+
+    /**
+     * The {@link PluginWrapper} for the plugin, only created on demand.
+     */
+    @CheckForNull
+    private PluginWrapper pluginWrapper;
+
+    /**
+     * Constructor.
+     *
+     * @param archive              the plugin archive.
+     * @param shortName            the short name of the plugin.
+     * @param version              the version of the plugin.
+     * @param dependencies         the mandatory dependencies of the plugin.
+     * @param optionalDependencies the optional dependencies of the plugin.
+     * @param supportsDynamicLoad  whether the plugin supports dynamic loading.
+     */
+    public PluginManifest(@Nonnull File archive, @Nonnull String shortName, @Nonnull String version,
+                          @Nonnull List<PluginWrapper.Dependency> dependencies,
+                          @Nonnull List<PluginWrapper.Dependency> optionalDependencies,
+                          @Nonnull YesNoMaybe supportsDynamicLoad) {
+        this(archive, shortName, version, dependencies, optionalDependencies, supportsDynamicLoad, null);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param archive              the plugin archive.
+     * @param shortName            the short name of the plugin.
+     * @param version              the version of the plugin.
+     * @param dependencies         the mandatory dependencies of the plugin.
+     * @param optionalDependencies the optional dependencies of the plugin.
+     * @param supportsDynamicLoad  whether the plugin supports dynamic loading.
+     * @param digest               the digest of the plugin archive or {@code null} if unknown.
+     */
+    public PluginManifest(@Nonnull File archive, @Nonnull String shortName, @Nonnull String version,
+                          @Nonnull List<PluginWrapper.Dependency> dependencies,
+                          @Nonnull List<PluginWrapper.Dependency> optionalDependencies,
+                          @Nonnull YesNoMaybe supportsDynamicLoad, @CheckForNull String digest) {
+        this.archive = archive;
+        this.shortName = shortName;
+        this.version = version;
+        this.versionNumber = new VersionNumber(version);
+        this.dependencies = Collections.unmodifiableList(new ArrayList<PluginWrapper.Dependency>(dependencies));
+        this.optionalDependencies =
+                Collections.unmodifiableList(new ArrayList<PluginWrapper.Dependency>(optionalDependencies));
+        this.supportsDynamicLoad = supportsDynamicLoad;
+        this.digest = digest;
+    }
+
+    /**
+     * Reads the manifest of a plugin archive. Only the zip central directory and the manifest entry are read.
+     *
+     * @param archive the plugin archive.
+     * @return the plugin manifest.
+     * @throws IOException if the archive could not be read or does not have a manifest.
+     */
+    @Nonnull
+    public static PluginManifest read(@Nonnull File archive) throws IOException {
+        return read(archive, null);
+    }
+
+    /**
+     * Reads the manifest of a plugin archive whose digest is already known. Only the zip central directory and the
+     * manifest entry are read.
+     *
+     * @param archive the plugin archive.
+     * @param digest  the digest of the plugin archive or {@code null} if unknown.
+     * @return the plugin manifest.
+     * @throws IOException if the archive could not be read or does not have a manifest.
+     */
+    @Nonnull
+    public static PluginManifest read(@Nonnull File archive, @CheckForNull String digest) throws IOException {
+        final Manifest manifest;
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            ZipEntry entry = zip.getEntry(JarFile.MANIFEST_NAME);
+            if (entry == null) {
+                throw new IOException("Plugin archive " + archive + " does not have a " + JarFile.MANIFEST_NAME);
+            }
+            final InputStream stream = zip.getInputStream(entry);
+            try {
+                manifest = new Manifest(stream);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        } finally {
+            zip.close();
+        }
+        return parse(archive, manifest, digest);
+    }
+
+    /**
+     * Reads the manifest of a plugin archive from its source without staging it. Only the start of the archive is
+     * read as plugin archives have the manifest as their first entry, the rest of the archive is only read if the
+     * manifest is elsewhere.
+     *
+     * @param resource the source of the plugin archive.
+     * @param baseName the base name of the plugin archive.
+     * @param stager   stages the archive when it is needed.
+     * @return the plugin manifest, which is not staged.
+     * @throws IOException if the archive could not be read or does not have a manifest.
+     */
+    @Nonnull
+    static PluginManifest read(@Nonnull URL resource, @Nonnull String baseName, @Nonnull Stager stager)
+            throws IOException {
+        Manifest manifest;
+        final InputStream stream = resource.openStream();
+        try {
+            final JarInputStream jar = new JarInputStream(stream, false);
+            manifest = jar.getManifest();
+            ZipEntry entry;
+            while (manifest == null && (entry = jar.getNextEntry()) != null) {
+                if (JarFile.MANIFEST_NAME.equalsIgnoreCase(entry.getName())) {
+                    manifest = new Manifest(jar);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        if (manifest == null) {
+            throw new IOException("Plugin archive " + resource + " does not have a " + JarFile.MANIFEST_NAME);
+        }
+        final PluginManifest result = parse(new File(baseName + ".jpi"), manifest, null);
+        result.archive = null;
+        result.stager = stager;
+        return result;
+    }
+
+    /**
+     * Creates the manifest for a plugin that already has a {@link PluginWrapper}.
+     *
+     * @param wrapper the plugin wrapper.
+     * @param archive the plugin archive.
+     * @return the plugin manifest.
+     */
+    @Nonnull
+    static PluginManifest of(@Nonnull PluginWrapper wrapper, @Nonnull File archive) {
+        PluginManifest result = new PluginManifest(archive, wrapper.getShortName(), wrapper.getVersion(),
+                wrapper.getDependencies(), wrapper.getOptionalDependencies(), wrapper.supportsDynamicLoad());
+        result.pluginWrapper = wrapper;
+        return result;
+    }
+
+    /**
+     * Creates the manifest for a plugin from its {@link PluginIndex} entry.
+     *
+     * @param entry   the index entry.
+     * @param archive the staged archive or {@code null} if not staged yet.
+     * @param stager  stages the archive when it is needed, only used if {@code archive} is {@code null}.
+     * @return the plugin manifest.
+     */
+    @Nonnull
+    static PluginManifest of(@Nonnull PluginIndex.Entry entry, @CheckForNull File archive,
+                             @CheckForNull Stager stager) {
+        final PluginManifest result = new PluginManifest(
+                archive == null ? new File(entry.getFileName()) : archive, entry.getShortName(), entry.getVersion(),
+                entry.getDependencies(), entry.getOptionalDependencies(), entry.supportsDynamicLoad(),
+                entry.getDigest());
+        if (archive == null) {
+            result.archive = null;
+            result.stager = stager;
+        }
+        return result;
+    }
+
+    /**
+     * Parses the main attributes of a plugin manifest, following the same rules as
+     * {@link hudson.ClassicPluginStrategy}.
+     *
+     * @param archive  the plugin archive.
+     * @param manifest the manifest.
+     * @param digest   the digest of the plugin archive or {@code null} if unknown.
+     * @return the plugin manifest.
+     */
+    @Nonnull
+    static PluginManifest parse(@Nonnull File archive, @Nonnull Manifest manifest, @CheckForNull String digest) {
+        final Attributes atts = manifest.getMainAttributes();
+        String shortName = atts.getValue("Short-Name");
+        if (shortName == null) {
+            shortName = atts.getValue("Extension-Name");
+        }
+        if (shortName == null) {
+            shortName = FilenameUtils.getBaseName(archive.getName());
+        }
+        String version = atts.getValue("Plugin-Version");
+        if (version == null) {
+            version = atts.getValue("Implementation-Version");
+        }
+        if (version == null) {
+            version = "???";
+        }
+        List<PluginWrapper.Dependency> dependencies = new ArrayList<PluginWrapper.Dependency>();
+        List<PluginWrapper.Dependency> optionalDependencies = new ArrayList<PluginWrapper.Dependency>();
+        String deps = atts.getValue("Plugin-Dependencies");
+        if (deps != null) {
+            for (String s : deps.split(",")) {
+                PluginWrapper.Dependency d = new PluginWrapper.Dependency(s);
+                if (d.optional) {
+                    optionalDependencies.add(d);
+                } else {
+                    dependencies.add(d);
+                }
+            }
+        }
+        String dynamicLoad = atts.getValue("Support-Dynamic-Loading");
+        YesNoMaybe supportsDynamicLoad = dynamicLoad == null
+                ? YesNoMaybe.MAYBE
+                : (Boolean.parseBoolean(dynamicLoad) ? YesNoMaybe.YES : YesNoMaybe.NO);
+        return new PluginManifest(archive, shortName, version, dependencies, optionalDependencies,
+                supportsDynamicLoad, digest);
+    }
+
+    /**
+     * Returns the plugin archive.
+     *
+     * @return the plugin archive or {@code null} if the plugin has been read lazily and not staged yet.
+     * @see #stage()
+     */
+    @CheckForNull
+    public File getArchive() {
+        return archive;
+    }
+
+    /**
+     * Returns {@code true} if the plugin archive has been staged.
+     *
+     * @return {@code true} if the plugin archive has been staged.
+     */
+    public boolean isStaged() {
+        return archive != null;
+    }
+
+    /**
+     * Returns the plugin archive, staging it first if the plugin has been read lazily.
+     *
+     * @return the plugin archive.
+     * @throws IOException if the archive could not be staged or no longer matches this manifest.
+     */
+    @Nonnull
+    public synchronized File stage() throws IOException {
+        File result = archive;
+        if (result == null) {
+            if (stager == null) {
+                throw new IOException("Plugin " + this + " cannot be staged");
+            }
+            final PluginManifest staged = stager.stage();
+            if (!shortName.equals(staged.getShortName()) || !version.equals(staged.getVersion())) {
+                throw new IOException("Plugin " + this + " changed to " + staged + " before it could be staged");
+            }
+            result = staged.getArchive();
+            if (result == null) {
+                throw new IOException("Plugin " + this + " was not staged");
+            }
+            digest = staged.getDigest();
+            archive = result;
+            stager = null;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the short name of the plugin.
+     *
+     * @return the short name of the plugin.
+     */
+    @Nonnull
+    public String getShortName() {
+        return shortName;
+    }
+
+    /**
+     * Returns the version of the plugin.
+     *
+     * @return the version of the plugin.
+     */
+    @Nonnull
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the parsed version of the plugin.
+     *
+     * @return the parsed version of the plugin.
+     */
+    @Nonnull
+    public VersionNumber getVersionNumber() {
+        return versionNumber;
+    }
+
+    /**
+     * Returns the mandatory dependencies of the plugin.
+     *
+     * @return the mandatory dependencies of the plugin.
+     */
+    @Nonnull
+    public List<PluginWrapper.Dependency> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Returns the optional dependencies of the plugin.
+     *
+     * @return the optional dependencies of the plugin.
+     */
+    @Nonnull
+    public List<PluginWrapper.Dependency> getOptionalDependencies() {
+        return optionalDependencies;
+    }
+
+    /**
+     * Returns whether the plugin supports dynamic loading.
+     *
+     * @return whether the plugin supports dynamic loading.
+     */
+    @Nonnull
+    public YesNoMaybe supportsDynamicLoad() {
+        return supportsDynamicLoad;
+    }
+
+    /**
+     * Returns the digest of the plugin archive, if known.
+     *
+     * @return the digest of the plugin archive or {@code null} if unknown.
+     */
+    @CheckForNull
+    public String getDigest() {
+        return digest;
+    }
+
+    /**
+     * Returns a full {@link PluginWrapper} for the plugin. This is expensive as the {@link PluginStrategy} will
+     * explode the archive and create a class loader, so it is only created on the first request.
+     *
+     * @return the {@link PluginWrapper}.
+     * @throws IOException if the {@link PluginWrapper} could not be created.
+     */
+    @Nonnull
+    public synchronized PluginWrapper getPluginWrapper() throws IOException {
+        if (pluginWrapper == null) {
+            final Jenkins jenkins = Jenkins.getInstance();
+            if (jenkins == null) {
+                throw new IOException(Jenkins.class + " is missing");
+            }
+            pluginWrapper = jenkins.getPluginManager().getPluginStrategy().createPluginWrapper(stage());
+        }
+        return pluginWrapper;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return shortName + ":" + version;
+    }
+
+    /**
+     * Stages the archive of a plugin that has been read lazily.
+     */
+    interface Stager {
+        /**
+         * Stages the archive.
+         *
+         * @return the manifest of the staged archive.
+         * @throws IOException if the archive could not be staged.
+         */
+        @Nonnull
+        PluginManifest stage() throws IOException;
+    }
+}
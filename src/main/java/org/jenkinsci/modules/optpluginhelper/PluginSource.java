@@ -28,9 +28,11 @@ import hudson.ExtensionPoint;
 import hudson.Util;
 import jenkins.model.Jenkins;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
@@ -57,6 +59,33 @@ public abstract class PluginSource implements ExtensionPoint {
     @Nonnull
     public abstract List<URL> listPlugins();
 
+    /**
+     * Returns a token that identifies the current content of this source. The token must change whenever the list of
+     * plugins or the content of any of the plugins may have changed, which allows {@link PluginHelper} to skip
+     * re-examining the plugins from a source that has not changed since the last refresh.
+     *
+     * @return the change token or {@code null} if the source cannot tell, in which case the plugins from this source
+     * will be re-examined on every refresh.
+     * @since 1.2
+     */
+    @CheckForNull
+    public String getChangeToken() {
+        return null;
+    }
+
+    /**
+     * Returns the precomputed index of the plugins from this source, which lets {@link PluginHelper} decide which
+     * plugins to install, and whether they are staged already, without reading the plugin archives. Plugins that are
+     * not in the index are read as usual.
+     *
+     * @return the index or {@code null} if this source does not have one.
+     * @since 1.2
+     */
+    @CheckForNull
+    public PluginIndex getIndex() {
+        return null;
+    }
+
     /**
      * Returns the canonical list of all plugins from all {@link PluginSource} implementations.
      *
@@ -65,45 +94,114 @@ public abstract class PluginSource implements ExtensionPoint {
     @Nonnull
     public static List<URL> allPlugins() {
         Set<URL> resultSet = new LinkedHashSet<URL>();
+        for (PluginSource src : all()) {
+            resultSet.addAll(listPluginsOf(src));
+        }
+        return new ArrayList<URL>(resultSet);
+    }
+
+    /**
+     * Returns all the {@link PluginSource} implementations.
+     *
+     * @return all the {@link PluginSource} implementations, may be empty but never {@code null}.
+     */
+    @Nonnull
+    static List<PluginSource> all() {
         Jenkins jenkins = Jenkins.getInstance();
         // TODO switch to ExtensionList.lookup once Jenkins 1.572+
-        if (jenkins != null) {
-            for (PluginSource src : jenkins.getExtensionList(PluginSource.class)) {
-                try {
-                    // trust but verify, this extension point can be used in cases where it may not be easy
-                    // to recover from errors until it has done its job, so this must be error safe in the extreme
-                    for (Object url : Util.fixNull(src.listPlugins())) {
-                        if (url instanceof URL) {
-                            resultSet.add((URL) url);
-                        } else if (url == null) {
-                            LOGGER.log(Level.SEVERE,
-                                    "Optional plugin source {0} returned a null value in its list of optional plugins",
-                                    src);
-                        } else {
-                            LOGGER.log(Level.SEVERE,
-                                    "Optional plugin source {0} returned an instance of {1} in its list of optional " 
-                                            + "plugins where only instances of {2} are expected",
-                                    new Object[]{src, url.getClass(), URL.class});
-                        }
-                    }
-                } catch (RuntimeException e) {
-                    // these should not happen, but we should be graceful if they do
-                    LOGGER.log(Level.INFO, String.format("Optional plugin source %s threw a runtime exception", src),
-                            e);
-                } catch (Exception e) {
-                    // your implementation must be doing funky stuff to throw a checked exception from a method with
-                    // no checked exceptions declared
-                    LOGGER.log(Level.WARNING,
-                            String.format("Optional plugin source %s threw an unexpected checked exception", src), e);
-                } catch (Error e) {
-                    // nothing we can do with an error, just pass it through
-                    throw e;
-                } catch (Throwable t) {
-                    // your implementation is broken if we end up here 
+        return jenkins == null
+                ? Collections.<PluginSource>emptyList()
+                : jenkins.getExtensionList(PluginSource.class);
+    }
+
+    /**
+     * Returns the change token of a source, taking care of broken implementations.
+     *
+     * @param src the source.
+     * @return the change token or {@code null} if the source cannot tell or failed.
+     */
+    @CheckForNull
+    static String changeTokenOf(@Nonnull PluginSource src) {
+        try {
+            return src.getChangeToken();
+        } catch (RuntimeException e) {
+            // these should not happen, but we should be graceful if they do
+            LOGGER.log(Level.INFO, String.format("Optional plugin source %s threw a runtime exception", src), e);
+        } catch (Error e) {
+            // nothing we can do with an error, just pass it through
+            throw e;
+        } catch (Throwable t) {
+            // your implementation is broken if we end up here
+            LOGGER.log(Level.SEVERE, String.format("Optional plugin source %s threw an unexpected throwable", src), t);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of a source, taking care of broken implementations.
+     *
+     * @param src the source.
+     * @return the index or {@code null} if the source does not have one or failed.
+     */
+    @CheckForNull
+    static PluginIndex indexOf(@Nonnull PluginSource src) {
+        try {
+            return src.getIndex();
+        } catch (RuntimeException e) {
+            // these should not happen, but we should be graceful if they do
+            LOGGER.log(Level.INFO, String.format("Optional plugin source %s threw a runtime exception", src), e);
+        } catch (Error e) {
+            // nothing we can do with an error, just pass it through
+            throw e;
+        } catch (Throwable t) {
+            // your implementation is broken if we end up here
+            LOGGER.log(Level.SEVERE, String.format("Optional plugin source %s threw an unexpected throwable", src), t);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the list of plugins from a source, taking care of broken implementations.
+     *
+     * @param src the source.
+     * @return the list of {@link URL}s for the optional plugins from the source, may be empty but never {@code null}
+     */
+    @Nonnull
+    static List<URL> listPluginsOf(@Nonnull PluginSource src) {
+        Set<URL> resultSet = new LinkedHashSet<URL>();
+        try {
+            // trust but verify, this extension point can be used in cases where it may not be easy
+            // to recover from errors until it has done its job, so this must be error safe in the extreme
+            for (Object url : Util.fixNull(src.listPlugins())) {
+                if (url instanceof URL) {
+                    resultSet.add((URL) url);
+                } else if (url == null) {
+                    LOGGER.log(Level.SEVERE,
+                            "Optional plugin source {0} returned a null value in its list of optional plugins",
+                            src);
+                } else {
                     LOGGER.log(Level.SEVERE,
-                            String.format("Optional plugin source %s threw an unexpected throwable", src), t);
+                            "Optional plugin source {0} returned an instance of {1} in its list of optional "
+                                    + "plugins where only instances of {2} are expected",
+                            new Object[]{src, url.getClass(), URL.class});
                 }
             }
+        } catch (RuntimeException e) {
+            // these should not happen, but we should be graceful if they do
+            LOGGER.log(Level.INFO, String.format("Optional plugin source %s threw a runtime exception", src),
+                    e);
+        } catch (Exception e) {
+            // your implementation must be doing funky stuff to throw a checked exception from a method with
+            // no checked exceptions declared
+            LOGGER.log(Level.WARNING,
+                    String.format("Optional plugin source %s threw an unexpected checked exception", src), e);
+        } catch (Error e) {
+            // nothing we can do with an error, just pass it through
+            throw e;
+        } catch (Throwable t) {
+            // your implementation is broken if we end up here 
+            LOGGER.log(Level.SEVERE,
+                    String.format("Optional plugin source %s threw an unexpected throwable", src), t);
         }
         return new ArrayList<URL>(resultSet);
     }
@@ -26,10 +26,37 @@ package org.jenkinsci.modules.optpluginhelper;
 
 import hudson.ExtensionPoint;
 import hudson.PluginWrapper;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,6 +71,42 @@ public abstract class PluginWrapperFilter implements ExtensionPoint {
      */
     private static final Logger LOGGER = Logger.getLogger(PluginWrapperFilter.class.getName());
 
+    /**
+     * Whether decisions are cached at all, set the {@code disableDecisionCache} system property to evaluate every
+     * filter for every decision. Even when enabled only the decisions of filters that opt in are cached, see
+     * {@link #isDecisionCacheable()}.
+     */
+    private static final boolean DECISION_CACHE_ENABLED =
+            !Boolean.getBoolean(PluginWrapperFilter.class.getName() + ".disableDecisionCache");
+
+    /**
+     * The number of filter evaluations to run concurrently, the default of {@code 1} evaluates the filters serially.
+     */
+    private static final int CONCURRENT_THREADS = Math.max(1,
+            Integer.getInteger(PluginWrapperFilter.class.getName() + ".concurrentThreads", 1));
+
+    /**
+     * The time in milliseconds that a filter is allowed to decide on a plugin when filters are evaluated
+     * concurrently, {@code 0} to wait indefinitely.
+     */
+    private static final long FILTER_TIMEOUT = Math.max(0L,
+            Long.getLong(PluginWrapperFilter.class.getName() + ".filterTimeout", 0L));
+
+    /**
+     * The cached decisions keyed by plugin archive digest and filter fingerprint.
+     */
+    private static final ConcurrentMap<String, Decision> DECISIONS = new ConcurrentHashMap<String, Decision>();
+
+    /**
+     * The fingerprint of the filters that the {@link #DECISIONS} were made by.
+     */
+    private static String decisionFingerprint;
+
+    /**
+     * Incremented whenever cached decisions are invalidated, so that a refresh is not skipped afterwards.
+     */
+    private static final AtomicLong GENERATION = new AtomicLong();
+
     /**
      * Represents the result of a decision.
      *
@@ -82,6 +145,97 @@ public abstract class PluginWrapperFilter implements ExtensionPoint {
     @Nonnull
     protected abstract Decision makeDecision(PluginWrapper plugin, File archive);
 
+    /**
+     * Returns a token that identifies the state that this filter's decisions depend on. Returning a token opts the
+     * filter in to decision caching: decisions are cached for each plugin archive until the set of filters or any of
+     * their tokens change, so the token must change whenever the state the decisions depend on does (or the filter
+     * must call {@link #invalidateDecisions()}).
+     *
+     * @return the token or {@code null} if this filter does not provide one, in which case its decisions are only
+     * cached if {@link #isDecisionCacheable()} is overridden to return {@code true}.
+     * @since 1.2
+     */
+    @CheckForNull
+    protected String getDecisionCacheToken() {
+        return null;
+    }
+
+    /**
+     * Returns {@code true} if the decisions of this filter may be cached for each plugin archive. The default only
+     * caches the decisions of filters that provide a {@link #getDecisionCacheToken()}, so filters written before
+     * decisions were cached are evaluated on every refresh. A filter whose decisions only depend on the plugin
+     * archive can override this method to return {@code true} without providing a token.
+     *
+     * @return {@code true} if the decisions of this filter may be cached.
+     * @since 1.2
+     */
+    protected boolean isDecisionCacheable() {
+        return getDecisionCacheToken() != null;
+    }
+
+    /**
+     * Checks whether the decisions of a filter may be cached, taking care of broken implementations.
+     *
+     * @param filter the filter.
+     * @return {@code true} if the decisions of the filter may be cached.
+     */
+    private static boolean isCacheable(PluginWrapperFilter filter) {
+        if (!DECISION_CACHE_ENABLED) {
+            return false;
+        }
+        try {
+            return filter.isDecisionCacheable();
+        } catch (RuntimeException e) {
+            // these should not happen, but we should be graceful if they do
+            LOGGER.log(Level.INFO, String.format("Optional plugin filter %s threw a runtime exception", filter), e);
+            return false;
+        }
+    }
+
+    /**
+     * Makes a decision on a plugin from its manifest. The default implementation creates the full
+     * {@link PluginWrapper} and delegates to {@link #makeDecision(PluginWrapper, File)}, filters that can decide from
+     * the details in the manifest alone should override this method to avoid the cost of creating the wrapper.
+     *
+     * @param plugin the plugin manifest.
+     * @return the decision, where {@link Decision#EXCLUDE} is a veto.
+     * @throws IOException if the {@link PluginWrapper} is required and could not be created.
+     * @since 1.2
+     */
+    @Nonnull
+    protected Decision makeDecision(@Nonnull PluginManifest plugin) throws IOException {
+        final PluginWrapper wrapper = plugin.getPluginWrapper();
+        return makeDecision(wrapper, plugin.stage());
+    }
+
+    /**
+     * Makes decisions on a collection of plugins. Filters that need to consult an external resource, such as a policy
+     * file, should override this method so that the resource is only consulted once for all the plugins. The default
+     * implementation delegates to {@link #makeDecision(PluginManifest)} for each plugin.
+     *
+     * @param plugins the plugin manifests.
+     * @return the decision for each plugin, where {@link Decision#EXCLUDE} is a veto. Any plugin missing from the
+     * map is treated as {@link Decision#NO_OPINION} but the combined decision for that plugin will not be cached.
+     * @since 1.2
+     */
+    @Nonnull
+    protected Map<PluginManifest, Decision> makeDecisions(@Nonnull Collection<PluginManifest> plugins) {
+        Map<PluginManifest, Decision> result = new HashMap<PluginManifest, Decision>();
+        for (PluginManifest plugin : plugins) {
+            try {
+                result.put(plugin, makeDecision(plugin));
+            } catch (RuntimeException e) {
+                // these should not happen, but we should be graceful if they do
+                LOGGER.log(Level.INFO, String.format("Optional plugin filter %s threw a runtime exception", this),
+                        e);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING,
+                        String.format("Optional plugin filter %s could not inspect %s", this, plugin), e);
+            }
+        }
+        return result;
+    }
+
     /**
      * Makes a decision on a plugin.
      *
@@ -91,34 +245,176 @@ public abstract class PluginWrapperFilter implements ExtensionPoint {
      * @since 1.0
      */
     public static Decision decide(PluginWrapper plugin, File archive) {
+        return decide(PluginManifest.of(plugin, archive));
+    }
+
+    /**
+     * Makes a decision on a plugin.
+     *
+     * @param plugin the plugin manifest.
+     * @return the decision, where {@link Decision#EXCLUDE} is a veto.
+     * @since 1.2
+     */
+    public static Decision decide(@Nonnull PluginManifest plugin) {
+        return decideAll(Collections.singletonList(plugin)).get(plugin);
+    }
+
+    /**
+     * Makes decisions on a collection of plugins, giving each filter the whole collection at once through
+     * {@link #makeDecisions(Collection)}.
+     *
+     * @param plugins the plugin manifests.
+     * @return the decision for each plugin, where {@link Decision#EXCLUDE} is a veto.
+     * @since 1.2
+     */
+    @Nonnull
+    public static Map<PluginManifest, Decision> decideAll(@Nonnull Collection<PluginManifest> plugins) {
         final Jenkins jenkins = Jenkins.getInstance();
-        Decision result = Decision.NO_OPINION;
         if (jenkins == null) {
+            final Map<PluginManifest, Decision> result = new LinkedHashMap<PluginManifest, Decision>();
+            for (PluginManifest plugin : plugins) {
+                result.put(plugin, Decision.NO_OPINION);
+            }
             return result;
         }
         // TODO replace with ExtensionList.lookup() once past 1.572
-        for (PluginWrapperFilter filter : jenkins.getExtensionList(PluginWrapperFilter.class)) {
+        return decideAll(jenkins.getExtensionList(PluginWrapperFilter.class), plugins);
+    }
+
+    /**
+     * Makes decisions on a collection of plugins using the supplied filters.
+     *
+     * @param filters the filters.
+     * @param plugins the plugin manifests.
+     * @return the decision for each plugin, where {@link Decision#EXCLUDE} is a veto.
+     */
+    @Nonnull
+    static Map<PluginManifest, Decision> decideAll(@Nonnull List<PluginWrapperFilter> filters,
+                                                   @Nonnull Collection<PluginManifest> plugins) {
+        final List<PluginWrapperFilter> cacheable = new ArrayList<PluginWrapperFilter>(filters.size());
+        final List<PluginWrapperFilter> uncached = new ArrayList<PluginWrapperFilter>();
+        for (PluginWrapperFilter filter : filters) {
+            if (isCacheable(filter)) {
+                cacheable.add(filter);
+            } else {
+                uncached.add(filter);
+            }
+        }
+        final Map<PluginManifest, Decision> result = decideCached(cacheable, plugins);
+        if (uncached.isEmpty()) {
+            return result;
+        }
+        // the filters that have not opted in to caching decide on every plugin the others have not vetoed
+        final List<PluginManifest> remaining = new ArrayList<PluginManifest>(plugins.size());
+        for (PluginManifest plugin : plugins) {
+            if (result.get(plugin) != Decision.EXCLUDE) {
+                remaining.add(plugin);
+            }
+        }
+        final Map<PluginManifest, Decision> decisions =
+                evaluate(uncached, remaining, new HashSet<PluginManifest>());
+        for (Map.Entry<PluginManifest, Decision> entry : decisions.entrySet()) {
+            if (entry.getValue() != Decision.NO_OPINION) {
+                // an exclusion is a veto and an inclusion overrides no opinion
+                result.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Makes decisions on a collection of plugins using filters whose decisions may be cached.
+     *
+     * @param filters the filters, which must all be cacheable.
+     * @param plugins the plugin manifests.
+     * @return the decision for each plugin, where {@link Decision#EXCLUDE} is a veto.
+     */
+    @Nonnull
+    private static Map<PluginManifest, Decision> decideCached(@Nonnull List<PluginWrapperFilter> filters,
+                                                              @Nonnull Collection<PluginManifest> plugins) {
+        final Map<PluginManifest, Decision> result = new LinkedHashMap<PluginManifest, Decision>();
+        for (PluginManifest plugin : plugins) {
+            result.put(plugin, Decision.NO_OPINION);
+        }
+        final String fingerprint = fingerprint(filters);
+        final List<PluginManifest> pending = new ArrayList<PluginManifest>(plugins.size());
+        for (PluginManifest plugin : plugins) {
+            final Decision cached = fingerprint != null && plugin.getDigest() != null
+                    ? DECISIONS.get(plugin.getDigest() + "@" + fingerprint)
+                    : null;
+            if (cached != null) {
+                result.put(plugin, cached);
+            } else {
+                pending.add(plugin);
+            }
+        }
+        final Set<PluginManifest> uncacheable = new HashSet<PluginManifest>();
+        result.putAll(evaluate(filters, pending, uncacheable));
+        for (PluginManifest plugin : pending) {
+            // a failing filter may well succeed next time, so only remember decisions where every filter had a say
+            if (plugin.getDigest() != null && !uncacheable.contains(plugin)) {
+                DECISIONS.put(plugin.getDigest() + "@" + fingerprint, result.get(plugin));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the filters against the plugins, serially or concurrently as configured.
+     *
+     * @param filters     the filters.
+     * @param pending     the plugins to decide on.
+     * @param uncacheable the plugins whose combined decision should not be cached, updated in place.
+     * @return the decision for each plugin.
+     */
+    @Nonnull
+    private static Map<PluginManifest, Decision> evaluate(List<PluginWrapperFilter> filters,
+                                                          List<PluginManifest> pending,
+                                                          Set<PluginManifest> uncacheable) {
+        final Map<PluginManifest, Decision> result = new LinkedHashMap<PluginManifest, Decision>();
+        for (PluginManifest plugin : pending) {
+            result.put(plugin, Decision.NO_OPINION);
+        }
+        if (CONCURRENT_THREADS > 1 && !pending.isEmpty() && !filters.isEmpty()) {
+            decideConcurrently(filters, pending, result, uncacheable);
+        } else {
+            decideSerially(filters, pending, result, uncacheable);
+        }
+        return result;
+    }
+
+    /**
+     * Evaluates the filters one at a time, each filter deciding on all the plugins not yet excluded at once.
+     *
+     * @param filters     the filters.
+     * @param pending     the plugins to decide on.
+     * @param result      the decisions, updated in place.
+     * @param uncacheable the plugins whose combined decision should not be cached, updated in place.
+     */
+    private static void decideSerially(List<PluginWrapperFilter> filters, List<PluginManifest> pending,
+                                       Map<PluginManifest, Decision> result, Set<PluginManifest> uncacheable) {
+        final List<PluginManifest> undecided = new ArrayList<PluginManifest>(pending);
+        for (PluginWrapperFilter filter : filters) {
+            if (undecided.isEmpty()) {
+                break;
+            }
+            final Map<PluginManifest, Decision> decisions;
+            final long start = System.nanoTime();
             try {
-                switch (filter.makeDecision(plugin, archive)) {
-                    case EXCLUDE:
-                        return Decision.EXCLUDE;
-                    case INCLUDE:
-                        result = Decision.INCLUDE;
-                        break;
-                    case NO_OPINION:
-                        break;
-                    default:
-                        break;
-                }
+                decisions = filter.makeDecisions(Collections.unmodifiableList(undecided));
             } catch (RuntimeException e) {
                 // these should not happen, but we should be graceful if they do
                 LOGGER.log(Level.INFO, String.format("Optional plugin filter %s threw a runtime exception", filter),
                         e);
+                uncacheable.addAll(undecided);
+                continue;
             } catch (Exception e) {
                 // your implementation must be doing funky stuff to throw a checked exception from a method with
                 // no checked exceptions declared
                 LOGGER.log(Level.WARNING,
                         String.format("Optional plugin filter %s threw an unexpected checked exception", filter), e);
+                uncacheable.addAll(undecided);
+                continue;
             } catch (Error e) {
                 // nothing we can do with an error, just pass it through
                 throw e;
@@ -126,8 +422,278 @@ public abstract class PluginWrapperFilter implements ExtensionPoint {
                 // your implementation is broken if we end up here 
                 LOGGER.log(Level.SEVERE,
                         String.format("Optional plugin filter %s threw an unexpected throwable", filter), t);
+                uncacheable.addAll(undecided);
+                continue;
+            } finally {
+                RefreshStatistics.get().filter(filter, System.nanoTime() - start);
+            }
+            for (Iterator<PluginManifest> iterator = undecided.iterator(); iterator.hasNext(); ) {
+                final PluginManifest plugin = iterator.next();
+                final Decision decision = decisions == null ? null : decisions.get(plugin);
+                if (decision == null) {
+                    // the filter could not decide, e.g. it failed to inspect the plugin
+                    uncacheable.add(plugin);
+                } else if (decision == Decision.EXCLUDE) {
+                    result.put(plugin, Decision.EXCLUDE);
+                    iterator.remove();
+                } else if (decision == Decision.INCLUDE) {
+                    result.put(plugin, Decision.INCLUDE);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluates every filter against every plugin concurrently. As soon as any filter excludes a plugin, the
+     * outstanding evaluations for that plugin are cancelled. An evaluation that runs for longer than the
+     * {@code filterTimeout} is cancelled and treated as if the filter had failed.
+     *
+     * @param filters     the filters.
+     * @param pending     the plugins to decide on.
+     * @param result      the decisions, updated in place.
+     * @param uncacheable the plugins whose combined decision should not be cached, updated in place.
+     */
+    private static void decideConcurrently(List<PluginWrapperFilter> filters, List<PluginManifest> pending,
+                                           Map<PluginManifest, Decision> result, Set<PluginManifest> uncacheable) {
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(CONCURRENT_THREADS, filters.size() * pending.size()),
+                new NamingThreadFactory(new DaemonThreadFactory(), "PluginWrapperFilter.decide"));
+        try {
+            final Map<PluginManifest, List<Evaluation>> evaluations =
+                    new LinkedHashMap<PluginManifest, List<Evaluation>>();
+            for (PluginManifest plugin : pending) {
+                final AtomicBoolean excluded = new AtomicBoolean();
+                final List<Evaluation> forPlugin = new ArrayList<Evaluation>(filters.size());
+                for (PluginWrapperFilter filter : filters) {
+                    Evaluation evaluation = new Evaluation(filter, plugin, excluded);
+                    // the filter runs as if it were called on this thread, as it is when decided serially
+                    evaluation.future = executor.submit(ContextCallable.of(evaluation));
+                    forPlugin.add(evaluation);
+                }
+                evaluations.put(plugin, forPlugin);
+            }
+            for (Map.Entry<PluginManifest, List<Evaluation>> entry : evaluations.entrySet()) {
+                final PluginManifest plugin = entry.getKey();
+                for (Evaluation evaluation : entry.getValue()) {
+                    final Decision decision;
+                    try {
+                        decision = evaluation.await();
+                    } catch (InterruptedException e) {
+                        LOGGER.log(Level.WARNING, "Interrupted while waiting for optional plugin filters", e);
+                        Thread.currentThread().interrupt();
+                        uncacheable.addAll(pending);
+                        return;
+                    }
+                    if (evaluation.excluded.get()) {
+                        result.put(plugin, Decision.EXCLUDE);
+                        break;
+                    }
+                    if (decision == null) {
+                        // the filter failed or ran out of time
+                        uncacheable.add(plugin);
+                    } else if (decision == Decision.INCLUDE) {
+                        result.put(plugin, Decision.INCLUDE);
+                    }
+                }
+                if (result.get(plugin) == Decision.EXCLUDE) {
+                    for (Evaluation evaluation : entry.getValue()) {
+                        evaluation.future.cancel(true);
+                    }
+                }
+            }
+        } finally {
+            // interrupt any stragglers that have been abandoned
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes the fingerprint of the current filters, which also changes whenever cached decisions are invalidated.
+     *
+     * @return the fingerprint or {@code null} if any filter has not opted in to caching, in which case the decisions
+     * may change at any time.
+     */
+    @CheckForNull
+    static String fingerprint() {
+        final Jenkins jenkins = Jenkins.getInstance();
+        // TODO replace with ExtensionList.lookup() once past 1.572
+        final List<PluginWrapperFilter> filters = jenkins == null
+                ? Collections.<PluginWrapperFilter>emptyList()
+                : jenkins.getExtensionList(PluginWrapperFilter.class);
+        for (PluginWrapperFilter filter : filters) {
+            if (!isCacheable(filter)) {
+                return null;
+            }
+        }
+        return fingerprint(filters) + "#" + GENERATION.get();
+    }
+
+    /**
+     * Computes the fingerprint of a set of filters, discarding any cached decisions if it has changed since the
+     * last time.
+     *
+     * @param filters the filters.
+     * @return the fingerprint.
+     */
+    private static String fingerprint(List<PluginWrapperFilter> filters) {
+        StringBuilder buf = new StringBuilder();
+        for (PluginWrapperFilter filter : filters) {
+            if (buf.length() > 0) {
+                buf.append(',');
+            }
+            buf.append(filter.getClass().getName());
+            String token = filter.getDecisionCacheToken();
+            if (token != null) {
+                buf.append(':').append(token);
+            }
+        }
+        String fingerprint = Util.getDigestOf(buf.toString());
+        synchronized (DECISIONS) {
+            if (!fingerprint.equals(decisionFingerprint)) {
+                DECISIONS.clear();
+                decisionFingerprint = fingerprint;
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Discards all the cached decisions, for example because the configuration of a filter has changed.
+     *
+     * @since 1.2
+     */
+    public static void invalidateDecisions() {
+        GENERATION.incrementAndGet();
+        DECISIONS.clear();
+    }
+
+    /**
+     * Discards the cached decisions for a plugin archive.
+     *
+     * @param digest the digest of the plugin archive.
+     * @since 1.2
+     */
+    public static void invalidateDecisions(@Nonnull String digest) {
+        GENERATION.incrementAndGet();
+        final String prefix = digest + "@";
+        for (Iterator<String> iterator = DECISIONS.keySet().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().startsWith(prefix)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * The evaluation of a single filter against a single plugin for {@link #decideConcurrently}.
+     */
+    private static final class Evaluation implements Callable<Decision> {
+        /**
+         * The filter.
+         */
+        private final PluginWrapperFilter filter;
+        /**
+         * The plugin.
+         */
+        private final PluginManifest plugin;
+        /**
+         * Shared by all the evaluations of the plugin, set once any filter excludes the plugin.
+         */
+        private final AtomicBoolean excluded;
+        /**
+         * The {@link System#nanoTime()} when the evaluation started or {@code 0} if it has not started yet.
+         */
+        private volatile long started;
+        /**
+         * The pending result of the evaluation.
+         */
+        private Future<Decision> future;
+
+        /**
+         * Constructor.
+         *
+         * @param filter   the filter.
+         * @param plugin   the plugin.
+         * @param excluded the exclusion flag for the plugin.
+         */
+        private Evaluation(PluginWrapperFilter filter, PluginManifest plugin, AtomicBoolean excluded) {
+            this.filter = filter;
+            this.plugin = plugin;
+            this.excluded = excluded;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public Decision call() {
+            if (excluded.get()) {
+                // another filter has already vetoed this plugin
+                return null;
+            }
+            final long start = System.nanoTime();
+            started = start;
+            final Decision decision;
+            try {
+                // go through the batch method so that filters which only implement that are still honoured
+                decision = filter.makeDecisions(Collections.singletonList(plugin)).get(plugin);
+            } finally {
+                RefreshStatistics.get().filter(filter, System.nanoTime() - start);
+            }
+            if (decision == Decision.EXCLUDE) {
+                excluded.set(true);
+            }
+            return decision;
+        }
+
+        /**
+         * Waits for the evaluation to complete, the plugin to be excluded by another filter, or the evaluation to
+         * exceed the {@code filterTimeout}.
+         *
+         * @return the decision or {@code null} if the filter failed, timed out or was not needed.
+         * @throws InterruptedException if interrupted while waiting.
+         */
+        private Decision await() throws InterruptedException {
+            final long timeout = TimeUnit.MILLISECONDS.toNanos(FILTER_TIMEOUT);
+            while (true) {
+                if (excluded.get() && !future.isDone()) {
+                    future.cancel(true);
+                    return null;
+                }
+                long wait = TimeUnit.MILLISECONDS.toNanos(50);
+                final long start = started;
+                if (timeout > 0 && start != 0) {
+                    final long remaining = start + timeout - System.nanoTime();
+                    if (remaining <= 0) {
+                        future.cancel(true);
+                        LOGGER.log(Level.WARNING, "Optional plugin filter {0} did not decide on {1} within {2}ms",
+                                new Object[]{filter, plugin, FILTER_TIMEOUT});
+                        return null;
+                    }
+                    wait = Math.min(wait, remaining);
+                }
+                try {
+                    return future.get(wait, TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // check the exclusion flag and deadline again
+                } catch (CancellationException e) {
+                    return null;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof Error) {
+                        // nothing we can do with an error, just pass it through
+                        throw (Error) cause;
+                    }
+                    if (cause instanceof RuntimeException) {
+                        // these should not happen, but we should be graceful if they do
+                        LOGGER.log(Level.INFO,
+                                String.format("Optional plugin filter %s threw a runtime exception", filter), cause);
+                    } else {
+                        LOGGER.log(Level.WARNING,
+                                String.format("Optional plugin filter %s threw an unexpected throwable", filter),
+                                cause);
+                    }
+                    return null;
+                }
             }
         }
-        return result;
     }
 }
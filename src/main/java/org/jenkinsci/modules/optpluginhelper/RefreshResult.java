@@ -0,0 +1,176 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a {@link PluginHelper#refresh()}.
+ *
+ * @since 1.2
+ */
+public final class RefreshResult {
+    /**
+     * The result when there is nothing to refresh.
+     */
+    static final RefreshResult NOTHING = new RefreshResult(false, Collections.<String>emptyList(),
+            Collections.<String>emptyList(), Collections.<String>emptyList());
+
+    /**
+     * Whether a restart is required to complete activation.
+     */
+    private final boolean restartRequired;
+
+    /**
+     * The short names of the plugins that were dynamically loaded.
+     */
+    @Nonnull
+    private final List<String> loaded;
+
+    /**
+     * The short names of the plugins that were installed disabled because their dependencies cannot be satisfied.
+     */
+    @Nonnull
+    private final List<String> disabled;
+
+    /**
+     * The short names of the available plugins that were not activated, either because the filters excluded them
+     * or because the installed version is current, newer or pinned.
+     */
+    @Nonnull
+    private final List<String> skipped;
+
+    /**
+     * Whether the refresh was skipped because nothing had changed since the previous refresh.
+     */
+    private final boolean unchanged;
+
+    /**
+     * Constructor.
+     *
+     * @param restartRequired whether a restart is required to complete activation.
+     * @param loaded          the short names of the plugins that were dynamically loaded.
+     * @param disabled        the short names of the plugins that were installed disabled.
+     * @param skipped         the short names of the plugins that were not activated.
+     */
+    RefreshResult(boolean restartRequired, Collection<String> loaded, Collection<String> disabled,
+                  Collection<String> skipped) {
+        this(restartRequired, loaded, disabled, skipped, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param restartRequired whether a restart is required to complete activation.
+     * @param loaded          the short names of the plugins that were dynamically loaded.
+     * @param disabled        the short names of the plugins that were installed disabled.
+     * @param skipped         the short names of the plugins that were not activated.
+     * @param unchanged       whether the refresh was skipped because nothing had changed.
+     */
+    private RefreshResult(boolean restartRequired, Collection<String> loaded, Collection<String> disabled,
+                          Collection<String> skipped, boolean unchanged) {
+        this.unchanged = unchanged;
+        this.restartRequired = restartRequired;
+        this.loaded = Collections.unmodifiableList(new ArrayList<String>(loaded));
+        this.disabled = Collections.unmodifiableList(new ArrayList<String>(disabled));
+        this.skipped = Collections.unmodifiableList(new ArrayList<String>(skipped));
+    }
+
+    /**
+     * Returns the result of a refresh that was skipped because nothing had changed since this refresh. Nothing is
+     * loaded or installed by the skipped refresh, but a restart required by this refresh is still required.
+     *
+     * @return the result of the skipped refresh.
+     */
+    @Nonnull
+    RefreshResult unchanged() {
+        return new RefreshResult(restartRequired, Collections.<String>emptyList(), Collections.<String>emptyList(),
+                skipped, true);
+    }
+
+    /**
+     * Returns {@code true} if the refresh was skipped because none of the sources, filters or installed plugins had
+     * changed since the previous refresh, in which case nothing was loaded or installed.
+     *
+     * @return {@code true} if the refresh was skipped.
+     */
+    public boolean isUnchanged() {
+        return unchanged;
+    }
+
+    /**
+     * Returns {@code true} if a restart is required to complete activation.
+     *
+     * @return {@code true} if a restart is required to complete activation, {@code false} if either nothing changed
+     * or the additional plugins were successfully dynamically loaded.
+     */
+    public boolean isRestartRequired() {
+        return restartRequired;
+    }
+
+    /**
+     * Returns the short names of the plugins that were dynamically loaded.
+     *
+     * @return the short names of the plugins that were dynamically loaded.
+     */
+    @Nonnull
+    public List<String> getLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Returns the short names of the plugins that were installed disabled because their dependencies cannot be
+     * satisfied.
+     *
+     * @return the short names of the plugins that were installed disabled.
+     */
+    @Nonnull
+    public List<String> getDisabled() {
+        return disabled;
+    }
+
+    /**
+     * Returns the short names of the available plugins that were not activated.
+     *
+     * @return the short names of the available plugins that were not activated.
+     */
+    @Nonnull
+    public List<String> getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return "RefreshResult{restartRequired=" + restartRequired + ", loaded=" + loaded + ", disabled=" + disabled
+                + ", skipped=" + skipped + ", unchanged=" + unchanged + '}';
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.init.Terminator;
+
+import javax.annotation.Nonnull;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Timings and counters for the activation of optional plugins, so that the cost of each phase of
+ * {@link PluginHelper#refresh()} can be tracked. The statistics are cumulative since startup (or the last
+ * {@link #reset()}) apart from the "last" values which cover the most recent refresh that examined the plugins.
+ * The statistics are also registered with the platform MBean server as {@link #OBJECT_NAME} while Jenkins is running,
+ * and unregistered when it terminates so that the registration does not keep this class loader alive.
+ *
+ * @since 1.2
+ */
+public final class RefreshStatistics implements RefreshStatisticsMXBean {
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(RefreshStatistics.class.getName());
+
+    /**
+     * The name the statistics are registered under with the platform MBean server.
+     */
+    public static final String OBJECT_NAME = "org.jenkinsci.modules.optpluginhelper:type=RefreshStatistics";
+
+    /**
+     * The singleton instance.
+     */
+    private static final RefreshStatistics INSTANCE = new RefreshStatistics();
+
+    /**
+     * The phases of a refresh.
+     */
+    public enum Phase {
+        /**
+         * Asking the {@link PluginSource}s what they provide.
+         */
+        ENUMERATION,
+        /**
+         * Copying the optional plugins into the staging area and reading their manifests.
+         */
+        STAGING,
+        /**
+         * Evaluating the {@link PluginWrapperFilter}s.
+         */
+        FILTERING,
+        /**
+         * Resolving dependencies and working out which plugins can be enabled.
+         */
+        RESOLUTION,
+        /**
+         * Installing the plugin archives into the plugins directory.
+         */
+        INSTALLATION,
+        /**
+         * Dynamically loading the installed plugins.
+         */
+        DYNAMIC_LOAD
+    }
+
+    /**
+     * The number of refreshes that examined the plugins.
+     */
+    private final AtomicLong refreshCount = new AtomicLong();
+
+    /**
+     * The number of refreshes skipped because nothing had changed.
+     */
+    private final AtomicLong unchangedRefreshCount = new AtomicLong();
+
+    /**
+     * The duration of the last refresh in nanoseconds.
+     */
+    private final AtomicLong lastRefreshNanos = new AtomicLong();
+
+    /**
+     * The total duration of all refreshes in nanoseconds.
+     */
+    private final AtomicLong totalRefreshNanos = new AtomicLong();
+
+    /**
+     * The duration of each phase of the last refresh in nanoseconds, indexed by {@link Phase#ordinal()}.
+     */
+    private final AtomicLongArray lastPhaseNanos = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * The total duration of each phase in nanoseconds, indexed by {@link Phase#ordinal()}.
+     */
+    private final AtomicLongArray totalPhaseNanos = new AtomicLongArray(Phase.values().length);
+
+    /**
+     * The bytes read while staging.
+     */
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    /**
+     * The bytes written to the staging area.
+     */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * The digests computed while staging.
+     */
+    private final AtomicLong digestsComputed = new AtomicLong();
+
+    /**
+     * The staging cache hits.
+     */
+    private final AtomicLong stagingCacheHits = new AtomicLong();
+
+    /**
+     * The staging cache misses.
+     */
+    private final AtomicLong stagingCacheMisses = new AtomicLong();
+
+    /**
+     * The total time spent in each filter in nanoseconds, keyed by class name.
+     */
+    private final ConcurrentMap<String, AtomicLong> filterNanos = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * The number of invocations of each filter, keyed by class name.
+     */
+    private final ConcurrentMap<String, AtomicLong> filterInvocations = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * The duration of the most recent dynamic load of each plugin in nanoseconds, keyed by short name.
+     */
+    private final ConcurrentMap<String, Long> dynamicLoadNanos = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Constructor.
+     */
+    private RefreshStatistics() {
+    }
+
+    /**
+     * Returns the statistics.
+     *
+     * @return the statistics.
+     */
+    @Nonnull
+    public static RefreshStatistics get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Registers the statistics with the platform MBean server, replacing any registration left behind by a previous
+     * Jenkins in the same JVM. Failure to register is not fatal, the statistics are still available from
+     * {@link #get()}.
+     */
+    @Initializer(after = InitMilestone.PLUGINS_STARTED)
+    public static void register() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            try {
+                server.registerMBean(INSTANCE, name);
+            } catch (InstanceAlreadyExistsException e) {
+                // left behind by a previous Jenkins in this JVM, which would otherwise keep its class loader alive
+                server.unregisterMBean(name);
+                server.registerMBean(INSTANCE, name);
+            }
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Could not register optional plugin statistics MBean", e);
+        } catch (SecurityException e) {
+            LOGGER.log(Level.FINE, "Not permitted to register optional plugin statistics MBean", e);
+        }
+    }
+
+    /**
+     * Unregisters the statistics from the platform MBean server, unless another Jenkins in the same JVM has replaced
+     * our registration since.
+     */
+    @Terminator
+    public static void unregister() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.getClassLoaderFor(name) == RefreshStatistics.class.getClassLoader()) {
+                server.unregisterMBean(name);
+            }
+        } catch (InstanceNotFoundException e) {
+            LOGGER.log(Level.FINE, "Optional plugin statistics MBean was not registered", e);
+        } catch (JMException e) {
+            LOGGER.log(Level.FINE, "Could not unregister optional plugin statistics MBean", e);
+        } catch (SecurityException e) {
+            LOGGER.log(Level.FINE, "Not permitted to unregister optional plugin statistics MBean", e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getRefreshCount() {
+        return refreshCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getUnchangedRefreshCount() {
+        return unchangedRefreshCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getLastRefreshMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastRefreshNanos.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getTotalRefreshMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalRefreshNanos.get());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getLastPhaseMillis() {
+        return toMillis(lastPhaseNanos);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getTotalPhaseMillis() {
+        return toMillis(totalPhaseNanos);
+    }
+
+    /**
+     * Returns the duration of a phase in the last refresh.
+     *
+     * @param phase the phase.
+     * @return the duration in milliseconds.
+     */
+    public long getLastPhaseMillis(@Nonnull Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(lastPhaseNanos.get(phase.ordinal()));
+    }
+
+    /**
+     * Returns the total duration of a phase across all refreshes.
+     *
+     * @param phase the phase.
+     * @return the duration in milliseconds.
+     */
+    public long getTotalPhaseMillis(@Nonnull Phase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(totalPhaseNanos.get(phase.ordinal()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getDigestsComputed() {
+        return digestsComputed.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getStagingCacheHits() {
+        return stagingCacheHits.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long getStagingCacheMisses() {
+        return stagingCacheMisses.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getFilterMillis() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : filterNanos.entrySet()) {
+            result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue().get()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getFilterInvocations() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> entry : filterInvocations.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map<String, Long> getDynamicLoadMillis() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, Long> entry : dynamicLoadNanos.entrySet()) {
+            result.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void reset() {
+        refreshCount.set(0);
+        unchangedRefreshCount.set(0);
+        lastRefreshNanos.set(0);
+        totalRefreshNanos.set(0);
+        for (int i = 0; i < lastPhaseNanos.length(); i++) {
+            lastPhaseNanos.set(i, 0);
+            totalPhaseNanos.set(i, 0);
+        }
+        bytesRead.set(0);
+        bytesWritten.set(0);
+        digestsComputed.set(0);
+        stagingCacheHits.set(0);
+        stagingCacheMisses.set(0);
+        filterNanos.clear();
+        filterInvocations.clear();
+        dynamicLoadNanos.clear();
+    }
+
+    /**
+     * Converts per phase nanoseconds to milliseconds keyed by phase name.
+     *
+     * @param nanos the nanoseconds indexed by {@link Phase#ordinal()}.
+     * @return the milliseconds keyed by {@link Phase#name()}.
+     */
+    private static Map<String, Long> toMillis(AtomicLongArray nanos) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Phase phase : Phase.values()) {
+            result.put(phase.name(), TimeUnit.NANOSECONDS.toMillis(nanos.get(phase.ordinal())));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * Records the start of a refresh that examines the plugins, clearing the "last" values.
+     */
+    void refreshStarted() {
+        for (int i = 0; i < lastPhaseNanos.length(); i++) {
+            lastPhaseNanos.set(i, 0);
+        }
+    }
+
+    /**
+     * Records the completion of a refresh that examined the plugins.
+     *
+     * @param nanos the duration of the refresh.
+     */
+    void refreshCompleted(long nanos) {
+        refreshCount.incrementAndGet();
+        lastRefreshNanos.set(nanos);
+        totalRefreshNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Records a refresh that was skipped because nothing had changed.
+     */
+    void refreshUnchanged() {
+        unchangedRefreshCount.incrementAndGet();
+    }
+
+    /**
+     * Records time spent in a phase, a phase may be recorded more than once in a refresh.
+     *
+     * @param phase the phase.
+     * @param nanos the duration.
+     */
+    void phase(@Nonnull Phase phase, long nanos) {
+        lastPhaseNanos.addAndGet(phase.ordinal(), nanos);
+        totalPhaseNanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    /**
+     * Records bytes read while staging.
+     *
+     * @param bytes the number of bytes.
+     */
+    void bytesRead(long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    /**
+     * Records bytes written to the staging area.
+     *
+     * @param bytes the number of bytes.
+     */
+    void bytesWritten(long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Records a digest computation.
+     */
+    void digestComputed() {
+        digestsComputed.incrementAndGet();
+    }
+
+    /**
+     * Records a staging cache hit.
+     */
+    void stagingCacheHit() {
+        stagingCacheHits.incrementAndGet();
+    }
+
+    /**
+     * Records a staging cache miss.
+     */
+    void stagingCacheMiss() {
+        stagingCacheMisses.incrementAndGet();
+    }
+
+    /**
+     * Records an invocation of a filter.
+     *
+     * @param filter the filter.
+     * @param nanos  the duration of the invocation.
+     */
+    void filter(@Nonnull PluginWrapperFilter filter, long nanos) {
+        final String name = filter.getClass().getName();
+        increment(filterNanos, name, nanos);
+        increment(filterInvocations, name, 1);
+    }
+
+    /**
+     * Records the dynamic load of a plugin.
+     *
+     * @param shortName the short name of the plugin.
+     * @param nanos     the duration of the dynamic load.
+     */
+    void dynamicLoad(@Nonnull String shortName, long nanos) {
+        dynamicLoadNanos.put(shortName, nanos);
+    }
+
+    /**
+     * Adds to a counter in a map, creating it if necessary.
+     *
+     * @param counters the counters.
+     * @param key      the key.
+     * @param delta    the amount to add.
+     */
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key, long delta) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(delta);
+    }
+}
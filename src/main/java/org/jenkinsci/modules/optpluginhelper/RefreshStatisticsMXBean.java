@@ -0,0 +1,137 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link RefreshStatistics}. All durations are in milliseconds.
+ *
+ * @since 1.2
+ */
+public interface RefreshStatisticsMXBean {
+    /**
+     * Returns the number of refreshes that have examined the optional plugins.
+     *
+     * @return the number of refreshes that have examined the optional plugins.
+     */
+    long getRefreshCount();
+
+    /**
+     * Returns the number of refreshes that were skipped because nothing had changed.
+     *
+     * @return the number of refreshes that were skipped because nothing had changed.
+     */
+    long getUnchangedRefreshCount();
+
+    /**
+     * Returns the duration of the last refresh that examined the optional plugins.
+     *
+     * @return the duration of the last refresh that examined the optional plugins.
+     */
+    long getLastRefreshMillis();
+
+    /**
+     * Returns the total duration of all the refreshes that examined the optional plugins.
+     *
+     * @return the total duration of all the refreshes that examined the optional plugins.
+     */
+    long getTotalRefreshMillis();
+
+    /**
+     * Returns the duration of each phase in the last refresh, keyed by {@link RefreshStatistics.Phase} name.
+     *
+     * @return the duration of each phase in the last refresh.
+     */
+    Map<String, Long> getLastPhaseMillis();
+
+    /**
+     * Returns the total duration of each phase across all refreshes, keyed by {@link RefreshStatistics.Phase} name.
+     *
+     * @return the total duration of each phase across all refreshes.
+     */
+    Map<String, Long> getTotalPhaseMillis();
+
+    /**
+     * Returns the number of bytes read from the {@link PluginSource}s while staging.
+     *
+     * @return the number of bytes read while staging.
+     */
+    long getBytesRead();
+
+    /**
+     * Returns the number of bytes written to the staging area.
+     *
+     * @return the number of bytes written to the staging area.
+     */
+    long getBytesWritten();
+
+    /**
+     * Returns the number of digests computed while staging.
+     *
+     * @return the number of digests computed while staging.
+     */
+    long getDigestsComputed();
+
+    /**
+     * Returns the number of optional plugins that were already staged.
+     *
+     * @return the number of staging cache hits.
+     */
+    long getStagingCacheHits();
+
+    /**
+     * Returns the number of optional plugins that had to be (re-)staged or verified against their source.
+     *
+     * @return the number of staging cache misses.
+     */
+    long getStagingCacheMisses();
+
+    /**
+     * Returns the total time spent in each {@link PluginWrapperFilter}, keyed by class name.
+     *
+     * @return the total time spent in each {@link PluginWrapperFilter}.
+     */
+    Map<String, Long> getFilterMillis();
+
+    /**
+     * Returns the number of times each {@link PluginWrapperFilter} has been asked to decide, keyed by class name.
+     *
+     * @return the number of times each {@link PluginWrapperFilter} has been asked to decide.
+     */
+    Map<String, Long> getFilterInvocations();
+
+    /**
+     * Returns the duration of the most recent dynamic load of each plugin, keyed by short name.
+     *
+     * @return the duration of the most recent dynamic load of each plugin.
+     */
+    Map<String, Long> getDynamicLoadMillis();
+
+    /**
+     * Resets all the statistics.
+     */
+    void reset();
+}
@@ -0,0 +1,153 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.XmlFile;
+import hudson.util.XStream2;
+
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The on-disk record of the {@link ExtractedPluginMetadata} for each optional plugin {@link java.net.URL} that has
+ * been staged, so that a restart does not need to re-read the archives.
+ *
+ * @since 1.2
+ */
+class StagingManifest {
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(StagingManifest.class.getName());
+
+    /**
+     * The name of the manifest file within the staging area.
+     */
+    static final String FILE_NAME = "manifest.xml";
+
+    /**
+     * The current format version, manifests with any other version are ignored. Version 2 records the location of
+     * each archive in the {@link StagingStore}.
+     */
+    static final int CURRENT_VERSION = 2;
+
+    /**
+     * The XStream instance used to read and write manifests.
+     */
+    private static final XStream2 XSTREAM = new XStream2();
+
+    static {
+        XSTREAM.alias("optional-plugins", StagingManifest.class);
+        XSTREAM.alias("plugin", ExtractedPluginMetadata.class);
+    }
+
+    /**
+     * The format version.
+     */
+    private final int version;
+
+    /**
+     * The metadata keyed by {@link java.net.URL#toExternalForm()}.
+     */
+    private final Map<String, ExtractedPluginMetadata> entries;
+
+    /**
+     * Constructor.
+     *
+     * @param entries the metadata keyed by {@link java.net.URL#toExternalForm()}.
+     */
+    StagingManifest(Map<String, ExtractedPluginMetadata> entries) {
+        this.version = CURRENT_VERSION;
+        this.entries = new TreeMap<String, ExtractedPluginMetadata>(entries);
+    }
+
+    /**
+     * Returns the metadata keyed by {@link java.net.URL#toExternalForm()}.
+     *
+     * @return the metadata keyed by {@link java.net.URL#toExternalForm()}.
+     */
+    @Nonnull
+    Map<String, ExtractedPluginMetadata> getEntries() {
+        return entries == null
+                ? Collections.<String, ExtractedPluginMetadata>emptyMap()
+                : Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Loads the manifest from the staging area.
+     *
+     * @param baseDir the staging area.
+     * @return the metadata keyed by {@link java.net.URL#toExternalForm()}, empty if there is no usable manifest.
+     */
+    @Nonnull
+    static Map<String, ExtractedPluginMetadata> load(File baseDir) {
+        XmlFile file = new XmlFile(XSTREAM, new File(baseDir, FILE_NAME));
+        if (!file.exists()) {
+            return Collections.emptyMap();
+        }
+        try {
+            Object o = file.read();
+            if (!(o instanceof StagingManifest)) {
+                LOGGER.log(Level.INFO, "Ignoring unexpected content in {0}", file);
+                return Collections.emptyMap();
+            }
+            StagingManifest manifest = (StagingManifest) o;
+            if (manifest.version != CURRENT_VERSION) {
+                LOGGER.log(Level.INFO, "Ignoring {0} as it has version {1} and version {2} is required",
+                        new Object[]{file, manifest.version, CURRENT_VERSION});
+                return Collections.emptyMap();
+            }
+            return manifest.getEntries();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read " + file + ", optional plugins will be re-verified", e);
+        } catch (RuntimeException e) {
+            // XStream reports a corrupt file with runtime exceptions
+            LOGGER.log(Level.WARNING, "Could not parse " + file + ", optional plugins will be re-verified", e);
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Atomically replaces the manifest in the staging area.
+     *
+     * @param baseDir the staging area.
+     * @param entries the metadata keyed by {@link java.net.URL#toExternalForm()}.
+     */
+    static void save(File baseDir, Map<String, ExtractedPluginMetadata> entries) {
+        XmlFile file = new XmlFile(XSTREAM, new File(baseDir, FILE_NAME));
+        try {
+            // XmlFile writes through an AtomicFileWriter so readers never see a partial manifest
+            file.write(new StagingManifest(entries));
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write " + file, e);
+        }
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * A content addressed store for staged optional plugins. Each unique archive is stored once, in a directory named
+ * by the digest of its content, so the same archive offered by several {@link PluginSource}s (or by the same source
+ * under different {@link java.net.URL}s) is only stored once. The archive keeps its file name within the directory
+ * as the {@link hudson.PluginStrategy} falls back to the file name when a plugin does not declare its short name.
+ */
+final class StagingStore {
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(StagingStore.class.getName());
+
+    /**
+     * The name of the store directory within the staging area.
+     */
+    static final String DIR_NAME = "store";
+
+    /**
+     * Matches plugin archives.
+     */
+    private static final FileFilter ARCHIVES = new FileFilter() {
+        public boolean accept(File file) {
+            return file.isFile() && file.getName().endsWith(".jpi");
+        }
+    };
+
+    /**
+     * The staging area.
+     */
+    @Nonnull
+    private final File baseDir;
+
+    /**
+     * The store directory.
+     */
+    @Nonnull
+    private final File storeDir;
+
+    /**
+     * Constructor.
+     *
+     * @param baseDir the staging area.
+     */
+    StagingStore(@Nonnull File baseDir) {
+        this.baseDir = baseDir;
+        this.storeDir = new File(baseDir, DIR_NAME);
+    }
+
+    /**
+     * Resolves a path recorded by {@link #pathOf(File)}.
+     *
+     * @param path the path relative to the staging area.
+     * @return the file.
+     */
+    @Nonnull
+    File resolve(@Nonnull String path) {
+        return new File(baseDir, path);
+    }
+
+    /**
+     * Returns the path of a stored archive relative to the staging area, which is stable if the staging area moves.
+     *
+     * @param archive the stored archive.
+     * @return the path relative to the staging area.
+     */
+    @Nonnull
+    String pathOf(@Nonnull File archive) {
+        return DIR_NAME + "/" + archive.getParentFile().getName() + "/" + archive.getName();
+    }
+
+    /**
+     * Returns the stored archive with the supplied digest.
+     *
+     * @param digest the digest.
+     * @return the stored archive or {@code null} if there is no archive with that digest.
+     */
+    @CheckForNull
+    File get(@Nonnull String digest) {
+        final File[] archives = new File(storeDir, digest).listFiles(ARCHIVES);
+        return archives == null || archives.length == 0 ? null : archives[0];
+    }
+
+    /**
+     * Returns the stored archive with the supplied digest, preferring the one with the supplied file name.
+     *
+     * @param digest   the digest.
+     * @param fileName the file name of the archive or {@code null} if any archive with the digest will do.
+     * @return the stored archive or {@code null} if there is no archive with that digest.
+     */
+    @CheckForNull
+    File get(@Nonnull String digest, @CheckForNull String fileName) {
+        if (fileName != null) {
+            final File archive = new File(new File(storeDir, digest), fileName);
+            if (ARCHIVES.accept(archive)) {
+                return archive;
+            }
+        }
+        return get(digest);
+    }
+
+    /**
+     * Adds an archive to the store. The content is written to a temporary file while its digest is computed and
+     * then either moved into place or, if the store already has an archive with the same content, discarded.
+     *
+     * @param input    the content of the archive.
+     * @param fileName the file name to give the archive, without the {@code .jpi} extension.
+     * @return the stored archive.
+     * @throws IOException if the archive could not be stored.
+     */
+    @Nonnull
+    Entry add(@Nonnull InputStream input, @Nonnull String fileName) throws IOException {
+        final MessageDigest md5 = VerificationLevel.md5();
+        final CRC32 crc = new CRC32();
+        final File temp = createTempFile(fileName);
+        try {
+            final OutputStream output = new FileOutputStream(temp);
+            final long bytes;
+            try {
+                bytes = IOUtils.copyLarge(new CheckedInputStream(new DigestInputStream(input, md5), crc), output,
+                        new byte[ArchiveDigester.CHUNK_SIZE]);
+            } finally {
+                output.close();
+            }
+            return add(temp, fileName, bytes, md5, crc);
+        } finally {
+            deleteTempFile(temp);
+        }
+    }
+
+    /**
+     * Adds an archive from the file system to the store, see {@link #add(InputStream, String)}. The archive is read
+     * by the {@link ArchiveDigester} rather than through a stream.
+     *
+     * @param source   the archive.
+     * @param fileName the file name to give the archive, without the {@code .jpi} extension.
+     * @return the stored archive.
+     * @throws IOException if the archive could not be stored.
+     */
+    @Nonnull
+    Entry add(@Nonnull File source, @Nonnull String fileName) throws IOException {
+        final MessageDigest md5 = VerificationLevel.md5();
+        final CRC32 crc = new CRC32();
+        final File temp = createTempFile(fileName);
+        try {
+            final long bytes = ArchiveDigester.read(source, temp, md5, crc);
+            return add(temp, fileName, bytes, md5, crc);
+        } finally {
+            deleteTempFile(temp);
+        }
+    }
+
+    /**
+     * Creates the temporary file that an archive is written to while it is being added.
+     *
+     * @param fileName the file name to give the archive.
+     * @return the temporary file.
+     * @throws IOException if the file could not be created.
+     */
+    @Nonnull
+    private File createTempFile(@Nonnull String fileName) throws IOException {
+        if (!storeDir.isDirectory() && !storeDir.mkdirs() && !storeDir.isDirectory()) {
+            throw new IOException("Could not create " + storeDir);
+        }
+        return File.createTempFile(fileName, ".tmp", storeDir);
+    }
+
+    /**
+     * Deletes the temporary file once an archive has been added, or has failed to be added.
+     *
+     * @param temp the temporary file.
+     */
+    private static void deleteTempFile(@Nonnull File temp) {
+        if (temp.exists() && !temp.delete()) {
+            LOGGER.log(Level.FINE, "Couldn't delete temporary file {0}", temp);
+        }
+    }
+
+    /**
+     * Moves a fully written temporary file into place, unless the store already has an archive with the same
+     * content.
+     *
+     * @param temp     the temporary file.
+     * @param fileName the file name to give the archive, without the {@code .jpi} extension.
+     * @param bytes    the length of the archive.
+     * @param md5      the digest of the archive.
+     * @param crc      the CRC32 of the archive.
+     * @return the stored archive.
+     * @throws IOException if the archive could not be stored.
+     */
+    @Nonnull
+    private Entry add(@Nonnull File temp, @Nonnull String fileName, long bytes, @Nonnull MessageDigest md5,
+                      @Nonnull CRC32 crc) throws IOException {
+        final RefreshStatistics statistics = RefreshStatistics.get();
+        statistics.bytesRead(bytes);
+        statistics.bytesWritten(bytes);
+        statistics.digestComputed();
+        final String digest = Util.toHexString(md5.digest());
+        final String checksum = VerificationLevel.toHex(crc);
+        synchronized (this) {
+            final File existing = get(digest);
+            if (existing != null) {
+                if (existing.length() == bytes) {
+                    LOGGER.log(Level.FINER, "Archive {0} is already stored as {1}", new Object[]{fileName, existing});
+                    return new Entry(existing, digest, checksum, false);
+                }
+                LOGGER.log(Level.WARNING, "Replacing truncated archive {0}", existing);
+                remove(existing);
+            }
+            final File dir = new File(storeDir, digest);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Could not create " + dir);
+            }
+            final File target = new File(dir, fileName + ".jpi");
+            FileUtils.moveFile(temp, target);
+            return new Entry(target, digest, checksum, true);
+        }
+    }
+
+    /**
+     * Removes a stored archive, along with anything the {@link hudson.PluginStrategy} exploded next to it, for
+     * example because it has been found to be corrupt.
+     *
+     * @param archive the stored archive.
+     */
+    synchronized void remove(@Nonnull File archive) {
+        final File dir = archive.getParentFile();
+        if (dir != null && storeDir.equals(dir.getParentFile())) {
+            delete(dir);
+        }
+    }
+
+    /**
+     * Removes the archives whose digest is not in the supplied collection, along with anything the
+     * {@link hudson.PluginStrategy} exploded next to them, and any leftovers from the layout used before the store.
+     *
+     * @param digests the digests of the archives to keep.
+     */
+    void retainAll(@Nonnull Collection<String> digests) {
+        final Set<String> keep = new HashSet<String>(digests);
+        final File[] dirs = storeDir.listFiles();
+        if (dirs != null) {
+            for (File dir : dirs) {
+                if (dir.isDirectory() && !keep.contains(dir.getName())) {
+                    delete(dir);
+                } else if (dir.isFile() && dir.getName().endsWith(".tmp")) {
+                    // an interrupted add
+                    delete(dir);
+                }
+            }
+        }
+        // archives were previously staged directly in the staging area, named after their source
+        final File[] legacy = baseDir.listFiles(ARCHIVES);
+        if (legacy != null) {
+            for (File archive : legacy) {
+                final String name = archive.getName();
+                final String baseName = name.substring(0, name.length() - ".jpi".length());
+                if (!DIR_NAME.equals(baseName)) {
+                    delete(new File(baseDir, baseName));
+                }
+                delete(archive);
+            }
+        }
+    }
+
+    /**
+     * Deletes a file or directory, logging any failure.
+     *
+     * @param file the file or directory.
+     */
+    private static void delete(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            Util.deleteRecursive(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Couldn't delete " + file, e);
+        }
+    }
+
+    /**
+     * An archive in the store.
+     */
+    static final class Entry {
+        /**
+         * The stored archive.
+         */
+        @Nonnull
+        private final File archive;
+        /**
+         * The digest of the archive.
+         */
+        @Nonnull
+        private final String digest;
+        /**
+         * The CRC32 of the archive.
+         */
+        @Nonnull
+        private final String checksum;
+        /**
+         * Whether the archive was added by this call, {@code false} if the content was already stored.
+         */
+        private final boolean created;
+
+        /**
+         * Constructor.
+         *
+         * @param archive  the stored archive.
+         * @param digest   the digest of the archive.
+         * @param checksum the CRC32 of the archive.
+         * @param created  whether the archive was added by this call.
+         */
+        private Entry(@Nonnull File archive, @Nonnull String digest, @Nonnull String checksum, boolean created) {
+            this.archive = archive;
+            this.digest = digest;
+            this.checksum = checksum;
+            this.created = created;
+        }
+
+        /**
+         * Returns the stored archive.
+         *
+         * @return the stored archive.
+         */
+        @Nonnull
+        File getArchive() {
+            return archive;
+        }
+
+        /**
+         * Returns the digest of the archive.
+         *
+         * @return the digest of the archive.
+         */
+        @Nonnull
+        String getDigest() {
+            return digest;
+        }
+
+        /**
+         * Returns the CRC32 of the archive.
+         *
+         * @return the CRC32 of the archive.
+         */
+        @Nonnull
+        String getChecksum() {
+            return checksum;
+        }
+
+        /**
+         * Returns {@code true} if the archive was added by this call, {@code false} if the content was already
+         * stored.
+         *
+         * @return {@code true} if the archive was added by this call.
+         */
+        boolean isCreated() {
+            return created;
+        }
+    }
+}
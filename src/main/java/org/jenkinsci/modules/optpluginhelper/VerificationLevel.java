@@ -0,0 +1,282 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.Util;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.Checksum;
+
+/**
+ * How thoroughly a staged archive is checked against its {@link ExtractedPluginMetadata} before it is reused. The
+ * level is set with the {@code org.jenkinsci.modules.optpluginhelper.PluginHelper.verification} system property
+ * to one of {@code metadata} (the default), {@code sampled}, {@code checksum} or {@code digest}. The stronger levels
+ * only compare the length and content, so they also accept a staging area whose timestamps were not preserved.
+ *
+ * @since 1.2
+ */
+enum VerificationLevel {
+    /**
+     * Compares the length and last modified timestamp, the archive is not read.
+     */
+    METADATA {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean verify(@Nonnull ExtractedPluginMetadata metadata, @Nonnull File archive) {
+            return archive.lastModified() == metadata.getLastModified();
+        }
+    },
+    /**
+     * Compares the digest of {@link #SAMPLE_COUNT} blocks spread evenly through the archive, which always include
+     * the end of the archive where the zip central directory, with the CRC of every entry, lives.
+     */
+    SAMPLED {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean verify(@Nonnull ExtractedPluginMetadata metadata, @Nonnull File archive) throws IOException {
+            return metadata.getSample() == null
+                    ? DIGEST.verify(metadata, archive)
+                    : metadata.getSample().equals(sampleOf(archive));
+        }
+    },
+    /**
+     * Compares a CRC32 of the whole archive, which is much cheaper to compute than the digest.
+     */
+    CHECKSUM {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean verify(@Nonnull ExtractedPluginMetadata metadata, @Nonnull File archive) throws IOException {
+            return metadata.getChecksum() == null
+                    ? DIGEST.verify(metadata, archive)
+                    : metadata.getChecksum().equals(checksumOf(archive));
+        }
+    },
+    /**
+     * Compares the MD5 digest of the whole archive.
+     */
+    DIGEST {
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        boolean verify(@Nonnull ExtractedPluginMetadata metadata, @Nonnull File archive) throws IOException {
+            return metadata.getDigest() != null && metadata.getDigest().equals(digestOf(archive));
+        }
+    };
+
+    /**
+     * Our logger.
+     */
+    private static final Logger LOGGER = Logger.getLogger(VerificationLevel.class.getName());
+
+    /**
+     * The number of blocks read by {@link #SAMPLED}.
+     */
+    private static final int SAMPLE_COUNT = 16;
+
+    /**
+     * The size of the blocks read by {@link #SAMPLED}.
+     */
+    private static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * The configured level.
+     */
+    static final VerificationLevel CONFIGURED =
+            parse(System.getProperty(PluginHelper.class.getName() + ".verification"));
+
+    /**
+     * Checks the staged archive against its metadata.
+     *
+     * @param metadata the metadata recorded when the archive was staged.
+     * @param archive  the staged archive.
+     * @return {@code true} if the archive still matches the metadata.
+     */
+    final boolean matches(@Nonnull ExtractedPluginMetadata metadata, @Nonnull File archive) {
+        if (!archive.isFile() || archive.length() != metadata.getLength()) {
+            return false;
+        }
+        try {
+            return verify(metadata, archive);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not verify " + archive, e);
+            return false;
+        }
+    }
+
+    /**
+     * Checks the content of a staged archive, whose length is already known to match, against its metadata.
+     *
+     * @param metadata the metadata recorded when the archive was staged.
+     * @param archive  the staged archive.
+     * @return {@code true} if the archive still matches the metadata.
+     * @throws IOException if the archive could not be read.
+     */
+    abstract boolean verify(@Nonnull ExtractedPluginMetadata metadata, @Nonnull File archive) throws IOException;
+
+    /**
+     * Returns {@code true} if this level reads the archive, in which case a mismatch means the staged archive is
+     * corrupt rather than just touched.
+     *
+     * @return {@code true} if this level reads the archive.
+     */
+    boolean isContentVerified() {
+        return this != METADATA;
+    }
+
+    /**
+     * Parses the configured level.
+     *
+     * @param value the configured value.
+     * @return the level, {@link #METADATA} if not configured or not recognized.
+     */
+    @Nonnull
+    static VerificationLevel parse(@CheckForNull String value) {
+        if (value == null || value.trim().length() == 0) {
+            return METADATA;
+        }
+        try {
+            return valueOf(value.trim().toUpperCase(Locale.ENGLISH));
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(Level.WARNING, "Unknown verification level {0}, using {1}", new Object[]{value, METADATA});
+            return METADATA;
+        }
+    }
+
+    /**
+     * Computes the digest of a sample of the archive, see {@link #SAMPLED}.
+     *
+     * @param archive the archive.
+     * @return the digest of the sample.
+     * @throws IOException if the archive could not be read.
+     */
+    @Nonnull
+    static String sampleOf(@Nonnull File archive) throws IOException {
+        final MessageDigest md5 = md5();
+        final byte[] block = new byte[SAMPLE_SIZE];
+        long bytes = 0;
+        final RandomAccessFile file = new RandomAccessFile(archive, "r");
+        try {
+            final long length = file.length();
+            final int count = length <= SAMPLE_SIZE ? 1 : SAMPLE_COUNT;
+            for (int i = 0; i < count; i++) {
+                final long offset = count == 1 ? 0 : (length - SAMPLE_SIZE) * i / (count - 1);
+                final int size = (int) Math.min(SAMPLE_SIZE, length - offset);
+                file.seek(offset);
+                file.readFully(block, 0, size);
+                md5.update(block, 0, size);
+                bytes += size;
+            }
+        } finally {
+            file.close();
+        }
+        RefreshStatistics.get().bytesRead(bytes);
+        return Util.toHexString(md5.digest());
+    }
+
+    /**
+     * Computes the CRC32 of the archive, see {@link #CHECKSUM}.
+     *
+     * @param archive the archive.
+     * @return the CRC32 as hex.
+     * @throws IOException if the archive could not be read.
+     */
+    @Nonnull
+    static String checksumOf(@Nonnull File archive) throws IOException {
+        final CRC32 crc = new CRC32();
+        read(archive, null, crc);
+        return toHex(crc);
+    }
+
+    /**
+     * Computes the MD5 digest of the archive, the same digest that {@link StagingStore} uses, see {@link #DIGEST}.
+     *
+     * @param archive the archive.
+     * @return the digest.
+     * @throws IOException if the archive could not be read.
+     */
+    @Nonnull
+    static String digestOf(@Nonnull File archive) throws IOException {
+        final MessageDigest md5 = md5();
+        read(archive, md5, null);
+        RefreshStatistics.get().digestComputed();
+        return Util.toHexString(md5.digest());
+    }
+
+    /**
+     * Feeds the whole archive into a digest and/or a checksum.
+     *
+     * @param archive  the archive.
+     * @param md5      the digest or {@code null}.
+     * @param checksum the checksum or {@code null}.
+     * @throws IOException if the archive could not be read.
+     */
+    private static void read(@Nonnull File archive, @CheckForNull MessageDigest md5, @CheckForNull Checksum checksum)
+            throws IOException {
+        RefreshStatistics.get().bytesRead(ArchiveDigester.read(archive, null, md5, checksum));
+    }
+
+    /**
+     * Formats a checksum as it is recorded in the {@link ExtractedPluginMetadata}.
+     *
+     * @param checksum the checksum.
+     * @return the checksum as hex.
+     */
+    @Nonnull
+    static String toHex(@Nonnull Checksum checksum) {
+        return String.format("%08x", checksum.getValue());
+    }
+
+    /**
+     * Creates an MD5 digest.
+     *
+     * @return the digest.
+     * @throws IOException if MD5 is not available.
+     */
+    @Nonnull
+    static MessageDigest md5() throws IOException {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("MD5 digest is not available", e);
+        }
+    }
+}
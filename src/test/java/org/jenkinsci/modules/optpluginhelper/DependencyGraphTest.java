@@ -0,0 +1,181 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import hudson.util.VersionNumber;
+import jenkins.YesNoMaybe;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for {@link DependencyGraph}.
+ */
+public class DependencyGraphTest {
+
+    @Test
+    public void sortPlacesDependenciesFirst() throws Exception {
+        PluginManifest a = plugin("a");
+        PluginManifest b = plugin("b", "a:1.0");
+        PluginManifest c = plugin("c", "b:1.0");
+        PluginManifest d = plugin("d", "a:1.0;resolution:=optional");
+        List<PluginManifest> plugins = Arrays.asList(c, d, b, a);
+
+        DependencyGraph.LoadOrder order = DependencyGraph.build(plugins).sort(plugins);
+
+        List<PluginManifest> sorted = order.getSorted();
+        assertEquals(4, sorted.size());
+        assertTrue(sorted.indexOf(a) < sorted.indexOf(b));
+        assertTrue(sorted.indexOf(b) < sorted.indexOf(c));
+        assertTrue(sorted.indexOf(a) < sorted.indexOf(d));
+        assertEquals(3, order.getLevels().size());
+        assertEquals(Collections.singletonList(a), order.getLevels().get(0));
+        assertEquals(new HashSet<PluginManifest>(Arrays.asList(b, d)),
+                new HashSet<PluginManifest>(order.getLevels().get(1)));
+        assertEquals(Collections.singletonList(c), order.getLevels().get(2));
+    }
+
+    @Test
+    public void sortIgnoresDependenciesOutsideTheSubset() throws Exception {
+        PluginManifest a = plugin("a");
+        PluginManifest b = plugin("b", "a:1.0", "missing:1.0");
+        DependencyGraph graph = DependencyGraph.build(Arrays.asList(a, b));
+
+        DependencyGraph.LoadOrder order = graph.sort(Collections.singletonList(b));
+
+        assertEquals(Collections.singletonList(b), order.getSorted());
+        assertEquals(1, order.getLevels().size());
+    }
+
+    @Test
+    public void sortReportsTheCycle() {
+        PluginManifest a = plugin("a", "b:1.0");
+        PluginManifest b = plugin("b", "c:1.0");
+        PluginManifest c = plugin("c", "a:1.0;resolution:=optional");
+        PluginManifest d = plugin("d", "a:1.0");
+        List<PluginManifest> plugins = Arrays.asList(d, a, b, c);
+
+        try {
+            DependencyGraph.build(plugins).sort(plugins);
+            fail("Expected a cycle to be detected");
+        } catch (DependencyGraph.CycleDetectedException e) {
+            List<String> cycle = e.getCycle();
+            assertEquals(4, cycle.size());
+            assertEquals(cycle.get(0), cycle.get(cycle.size() - 1));
+            assertTrue(cycle.containsAll(Arrays.asList("a", "b", "c")));
+            assertFalse(cycle.contains("d"));
+            assertTrue(e.getMessage().contains(" -> "));
+        }
+    }
+
+    @Test
+    public void closureIncludesMandatoryDependencies() {
+        PluginManifest a = plugin("a");
+        PluginManifest b = plugin("b", "a:1.0");
+        PluginManifest c = plugin("c", "b:1.0");
+        PluginManifest unrelated = plugin("unrelated");
+        DependencyGraph graph = DependencyGraph.build(Arrays.asList(a, b, c, unrelated));
+
+        Set<PluginManifest> closure = graph.closure(Collections.singletonList(c), installed());
+
+        assertEquals(new HashSet<PluginManifest>(Arrays.asList(a, b, c)), closure);
+    }
+
+    @Test
+    public void closureIncludesOptionalDependenciesOnlyWhenAnOlderVersionIsInstalled() {
+        PluginManifest a = versioned("a", "2.0");
+        PluginManifest b = plugin("b", "a:2.0;resolution:=optional");
+        DependencyGraph graph = DependencyGraph.build(Arrays.asList(a, b));
+        List<PluginManifest> roots = Collections.singletonList(b);
+
+        assertEquals(Collections.singleton(b), graph.closure(roots, installed()));
+        assertEquals(new HashSet<PluginManifest>(Arrays.asList(a, b)),
+                graph.closure(roots, installed(installedPlugin("a", "1.0"))));
+        assertEquals(Collections.singleton(b), graph.closure(roots, installed(installedPlugin("a", "3.0"))));
+    }
+
+    /**
+     * Creates a plugin at version 1.0.
+     *
+     * @param shortName    the short name.
+     * @param dependencies the dependencies in manifest form.
+     * @return the plugin.
+     */
+    static PluginManifest plugin(String shortName, String... dependencies) {
+        return versioned(shortName, "1.0", dependencies);
+    }
+
+    /**
+     * Creates a plugin.
+     *
+     * @param shortName    the short name.
+     * @param version      the version.
+     * @param dependencies the dependencies in manifest form.
+     * @return the plugin.
+     */
+    static PluginManifest versioned(String shortName, String version, String... dependencies) {
+        List<PluginWrapper.Dependency> mandatory = new ArrayList<PluginWrapper.Dependency>();
+        List<PluginWrapper.Dependency> optional = new ArrayList<PluginWrapper.Dependency>();
+        for (String s : dependencies) {
+            PluginWrapper.Dependency d = new PluginWrapper.Dependency(s);
+            (d.optional ? optional : mandatory).add(d);
+        }
+        return new PluginManifest(new File(shortName + ".jpi"), shortName, version, mandatory, optional,
+                YesNoMaybe.MAYBE);
+    }
+
+    /**
+     * Creates an active and enabled installed plugin.
+     *
+     * @param shortName the short name.
+     * @param version   the version.
+     * @return the installed plugin.
+     */
+    private static InstalledPlugins.Plugin installedPlugin(String shortName, String version) {
+        return new InstalledPlugins.Plugin(shortName, version, new VersionNumber(version), true, true, false);
+    }
+
+    /**
+     * Creates a snapshot of installed plugins.
+     *
+     * @param plugins the installed plugins.
+     * @return the snapshot.
+     */
+    private static InstalledPlugins installed(InstalledPlugins.Plugin... plugins) {
+        return InstalledPlugins.of(Arrays.asList(plugins));
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import jenkins.YesNoMaybe;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PluginIndex}.
+ */
+public class PluginIndexTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void writeThenReadRoundTrips() throws Exception {
+        PluginManifest foo = PluginManifest.parse(new File("foo.jpi"), PluginManifestTest.manifest(
+                "Short-Name", "foo", "Plugin-Version", "1.2",
+                "Plugin-Dependencies", "a:1.0,b:2.0;resolution:=optional",
+                "Support-Dynamic-Loading", "true"), "0123456789abcdef0123456789abcdef");
+        PluginManifest bar = PluginManifest.parse(new File("bar.jpi"), PluginManifestTest.manifest(
+                "Short-Name", "bar", "Plugin-Version", "3.0"), "fedcba9876543210fedcba9876543210");
+        File file = tmp.newFile(PluginIndex.FILE_NAME);
+        new PluginIndex(Arrays.asList(new PluginIndex.Entry("foo.jpi", foo, 1234L),
+                new PluginIndex.Entry("bar.jpi", bar, 5678L))).write(file);
+
+        PluginIndex index = PluginIndex.read(file.toURI().toURL());
+
+        assertNotNull(index);
+        assertEquals(2, index.getEntries().size());
+        PluginIndex.Entry entry = index.get(new URL("file:/somewhere/else/foo.jpi"));
+        assertNotNull(entry);
+        assertSame(entry, index.get("foo.jpi"));
+        assertEquals("foo", entry.getShortName());
+        assertEquals("1.2", entry.getVersion());
+        assertEquals(1234L, entry.getSize());
+        assertEquals("0123456789abcdef0123456789abcdef", entry.getDigest());
+        assertEquals(YesNoMaybe.YES, entry.supportsDynamicLoad());
+        List<PluginWrapper.Dependency> dependencies = entry.getDependencies();
+        assertEquals(1, dependencies.size());
+        assertEquals("a", dependencies.get(0).shortName);
+        assertEquals("1.0", dependencies.get(0).version);
+        assertFalse(dependencies.get(0).optional);
+        List<PluginWrapper.Dependency> optionalDependencies = entry.getOptionalDependencies();
+        assertEquals(1, optionalDependencies.size());
+        assertEquals("b", optionalDependencies.get(0).shortName);
+        assertTrue(optionalDependencies.get(0).version.startsWith("2.0"));
+        assertTrue(optionalDependencies.get(0).optional);
+
+        PluginManifest manifest = entry.toManifest(null, null);
+        assertEquals("foo", manifest.getShortName());
+        assertEquals(entry.getDigest(), manifest.getDigest());
+        assertEquals(1, manifest.getOptionalDependencies().size());
+        assertTrue(manifest.getOptionalDependencies().get(0).optional);
+
+        PluginIndex.Entry other = index.get("bar.jpi");
+        assertNotNull(other);
+        assertTrue(other.getDependencies().isEmpty());
+        assertTrue(other.getOptionalDependencies().isEmpty());
+        assertEquals(YesNoMaybe.MAYBE, other.supportsDynamicLoad());
+        assertNull(index.get("missing.jpi"));
+    }
+
+    @Test
+    public void readIgnoresMissingOrCorruptIndex() throws Exception {
+        assertNull(PluginIndex.read(new File(tmp.getRoot(), "missing.xml").toURI().toURL()));
+        File corrupt = tmp.newFile("corrupt.xml");
+        FileUtils.writeStringToFile(corrupt, "<optional-plugin-index><entries>", "UTF-8");
+        assertNull(PluginIndex.read(corrupt.toURI().toURL()));
+        File unexpected = tmp.newFile("unexpected.xml");
+        FileUtils.writeStringToFile(unexpected, "<string>hello</string>", "UTF-8");
+        assertNull(PluginIndex.read(unexpected.toURI().toURL()));
+    }
+
+    @Test
+    public void readDropsIncompleteEntries() throws Exception {
+        File file = tmp.newFile(PluginIndex.FILE_NAME);
+        FileUtils.writeStringToFile(file, "<optional-plugin-index>\n"
+                + "  <version>" + PluginIndex.CURRENT_VERSION + "</version>\n"
+                + "  <entries>\n"
+                + "    <plugin>\n"
+                + "      <fileName>foo.jpi</fileName>\n"
+                + "      <shortName>foo</shortName>\n"
+                + "      <version>1.0</version>\n"
+                + "      <size>10</size>\n"
+                + "    </plugin>\n"
+                + "    <plugin>\n"
+                + "      <fileName>bar.jpi</fileName>\n"
+                + "      <version>1.0</version>\n"
+                + "      <size>10</size>\n"
+                + "      <digest>fedcba9876543210fedcba9876543210</digest>\n"
+                + "    </plugin>\n"
+                + "    <plugin>\n"
+                + "      <fileName>baz.jpi</fileName>\n"
+                + "      <shortName>baz</shortName>\n"
+                + "      <version>2.0</version>\n"
+                + "      <dependencies>\n"
+                + "        <string>foo:1.0</string>\n"
+                + "      </dependencies>\n"
+                + "      <size>10</size>\n"
+                + "      <digest>0123456789abcdef0123456789abcdef</digest>\n"
+                + "    </plugin>\n"
+                + "  </entries>\n"
+                + "</optional-plugin-index>\n", "UTF-8");
+
+        PluginIndex index = PluginIndex.read(file.toURI().toURL());
+
+        assertNotNull(index);
+        assertEquals(1, index.getEntries().size());
+        assertNull(index.get("foo.jpi"));
+        assertNull(index.get("bar.jpi"));
+        PluginIndex.Entry entry = index.get("baz.jpi");
+        assertNotNull(entry);
+        assertEquals("baz", entry.toManifest(null, null).getShortName());
+        assertEquals("foo", entry.getDependencies().get(0).shortName);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void entryRequiresDigest() {
+        new PluginIndex.Entry("foo.jpi", new PluginManifest(new File("foo.jpi"), "foo", "1.0",
+                Collections.<PluginWrapper.Dependency>emptyList(), Collections.<PluginWrapper.Dependency>emptyList(),
+                YesNoMaybe.MAYBE), 0L);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import jenkins.YesNoMaybe;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.jar.Manifest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link PluginManifest#parse(File, Manifest, String)}.
+ */
+public class PluginManifestTest {
+
+    @Test
+    public void parseSeparatesOptionalDependencies() {
+        Manifest manifest = manifest("Short-Name", "foo", "Plugin-Version", "1.2",
+                "Plugin-Dependencies", "a:1.0,b:2.0;resolution:=optional,c:3.0",
+                "Support-Dynamic-Loading", "true");
+
+        PluginManifest plugin = PluginManifest.parse(new File("bar.jpi"), manifest, "0123456789abcdef");
+
+        assertEquals("foo", plugin.getShortName());
+        assertEquals("1.2", plugin.getVersion());
+        assertEquals("0123456789abcdef", plugin.getDigest());
+        assertEquals(YesNoMaybe.YES, plugin.supportsDynamicLoad());
+        List<PluginWrapper.Dependency> dependencies = plugin.getDependencies();
+        assertEquals(2, dependencies.size());
+        assertEquals("a", dependencies.get(0).shortName);
+        assertEquals("1.0", dependencies.get(0).version);
+        assertFalse(dependencies.get(0).optional);
+        assertEquals("c", dependencies.get(1).shortName);
+        assertEquals("3.0", dependencies.get(1).version);
+        List<PluginWrapper.Dependency> optionalDependencies = plugin.getOptionalDependencies();
+        assertEquals(1, optionalDependencies.size());
+        assertEquals("b", optionalDependencies.get(0).shortName);
+        assertTrue(optionalDependencies.get(0).version.startsWith("2.0"));
+        assertTrue(optionalDependencies.get(0).optional);
+    }
+
+    @Test
+    public void parseFallsBackToExtensionNameAndImplementationVersion() {
+        Manifest manifest = manifest("Extension-Name", "foo", "Implementation-Version", "2.0",
+                "Support-Dynamic-Loading", "false");
+
+        PluginManifest plugin = PluginManifest.parse(new File("bar.jpi"), manifest, null);
+
+        assertEquals("foo", plugin.getShortName());
+        assertEquals("2.0", plugin.getVersion());
+        assertNull(plugin.getDigest());
+        assertEquals(YesNoMaybe.NO, plugin.supportsDynamicLoad());
+    }
+
+    @Test
+    public void parseFallsBackToTheArchiveName() {
+        PluginManifest plugin = PluginManifest.parse(new File("bar.jpi"), manifest(), null);
+
+        assertEquals("bar", plugin.getShortName());
+        assertEquals("???", plugin.getVersion());
+        assertEquals(YesNoMaybe.MAYBE, plugin.supportsDynamicLoad());
+        assertTrue(plugin.getDependencies().isEmpty());
+        assertTrue(plugin.getOptionalDependencies().isEmpty());
+    }
+
+    /**
+     * Creates a manifest.
+     *
+     * @param attributes the main attributes as alternating names and values.
+     * @return the manifest.
+     */
+    static Manifest manifest(String... attributes) {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().putValue("Manifest-Version", "1.0");
+        for (int i = 0; i + 1 < attributes.length; i += 2) {
+            manifest.getMainAttributes().putValue(attributes[i], attributes[i + 1]);
+        }
+        return manifest;
+    }
+}
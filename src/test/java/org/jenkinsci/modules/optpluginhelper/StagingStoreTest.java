@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.Util;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link StagingStore}.
+ */
+public class StagingStoreTest {
+
+    /**
+     * The content of the test archive.
+     */
+    private static final String CONTENT = "not really a plugin archive, but the store does not care";
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void addStoresIdenticalContentOnce() throws Exception {
+        File baseDir = tmp.newFolder("staging");
+        File source = tmp.newFile("source.jpi");
+        FileUtils.writeStringToFile(source, CONTENT, "UTF-8");
+        StagingStore store = new StagingStore(baseDir);
+        String digest = Util.getDigestOf(CONTENT);
+        assertNull(store.get(digest));
+
+        StagingStore.Entry first = store.add(new ByteArrayInputStream(CONTENT.getBytes("UTF-8")), "first");
+        StagingStore.Entry second = store.add(source, "second");
+
+        assertTrue(first.isCreated());
+        assertEquals(digest, first.getDigest());
+        assertEquals("first.jpi", first.getArchive().getName());
+        assertEquals(CONTENT, FileUtils.readFileToString(first.getArchive(), "UTF-8"));
+        assertFalse(second.isCreated());
+        assertEquals(first.getArchive(), second.getArchive());
+        assertEquals(first.getDigest(), second.getDigest());
+        assertEquals(first.getChecksum(), second.getChecksum());
+        assertEquals(first.getArchive(), store.get(digest));
+        assertEquals(first.getArchive(), store.resolve(store.pathOf(first.getArchive())));
+        assertEquals(first.getArchive(), store.get(digest, "first.jpi"));
+        assertEquals(first.getArchive(), store.get(digest, "second.jpi"));
+        assertNull(store.get(Util.getDigestOf("other"), "first.jpi"));
+        assertNoTemporaryFiles(baseDir);
+    }
+
+    @Test
+    public void addReplacesTruncatedArchive() throws Exception {
+        File baseDir = tmp.newFolder("staging");
+        String digest = Util.getDigestOf(CONTENT);
+        File truncated = new File(new File(new File(baseDir, StagingStore.DIR_NAME), digest), "old.jpi");
+        FileUtils.writeStringToFile(truncated, CONTENT.substring(0, 10), "UTF-8");
+        StagingStore store = new StagingStore(baseDir);
+
+        StagingStore.Entry entry = store.add(new ByteArrayInputStream(CONTENT.getBytes("UTF-8")), "new");
+
+        assertTrue(entry.isCreated());
+        assertEquals(digest, entry.getDigest());
+        assertFalse(truncated.exists());
+        assertArrayEquals(CONTENT.getBytes("UTF-8"), FileUtils.readFileToByteArray(entry.getArchive()));
+        assertEquals(entry.getArchive(), store.get(digest));
+        assertNoTemporaryFiles(baseDir);
+    }
+
+    /**
+     * Checks that no temporary files were left behind in the store.
+     *
+     * @param baseDir the staging area.
+     */
+    private static void assertNoTemporaryFiles(File baseDir) {
+        File[] files = new File(baseDir, StagingStore.DIR_NAME).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                assertFalse(file.getName().endsWith(".tmp"));
+            }
+        }
+    }
+}
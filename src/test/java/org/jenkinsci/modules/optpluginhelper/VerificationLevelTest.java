@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2015, CloudBees, Inc., Stephen Connolly
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ *
+ */
+package org.jenkinsci.modules.optpluginhelper;
+
+import hudson.PluginWrapper;
+import hudson.Util;
+import jenkins.YesNoMaybe;
+import org.apache.commons.io.FileUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link VerificationLevel}.
+ */
+public class VerificationLevelTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void parseDefaultsToMetadata() {
+        assertEquals(VerificationLevel.METADATA, VerificationLevel.parse(null));
+        assertEquals(VerificationLevel.METADATA, VerificationLevel.parse(""));
+        assertEquals(VerificationLevel.METADATA, VerificationLevel.parse("  "));
+        assertEquals(VerificationLevel.METADATA, VerificationLevel.parse("paranoid"));
+    }
+
+    @Test
+    public void parseIgnoresCaseAndWhitespace() {
+        assertEquals(VerificationLevel.SAMPLED, VerificationLevel.parse(" sampled "));
+        assertEquals(VerificationLevel.CHECKSUM, VerificationLevel.parse("Checksum"));
+        assertEquals(VerificationLevel.DIGEST, VerificationLevel.parse("DIGEST"));
+    }
+
+    @Test
+    public void sampleOfShortFileIsDigestOfWholeFile() throws Exception {
+        File empty = tmp.newFile("empty.jpi");
+        File small = tmp.newFile("small.jpi");
+        FileUtils.writeStringToFile(small, "shorter than a single sample block", "UTF-8");
+
+        assertEquals(Util.getDigestOf(""), VerificationLevel.sampleOf(empty));
+        assertEquals(Util.getDigestOf("shorter than a single sample block"), VerificationLevel.sampleOf(small));
+        assertEquals(VerificationLevel.digestOf(small), VerificationLevel.sampleOf(small));
+    }
+
+    @Test
+    public void sampleOfLongFileDetectsChangeToTheEnd() throws Exception {
+        byte[] content = new byte[256 * 1024];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File archive = tmp.newFile("large.jpi");
+        FileUtils.writeByteArrayToFile(archive, content);
+        String before = VerificationLevel.sampleOf(archive);
+
+        content[content.length - 1]++;
+        FileUtils.writeByteArrayToFile(archive, content);
+
+        assertFalse(before.equals(VerificationLevel.sampleOf(archive)));
+    }
+
+    @Test
+    public void contentLevelsDetectChangesThatKeepLengthAndTimestamp() throws Exception {
+        File archive = tmp.newFile("plugin.jpi");
+        FileUtils.writeStringToFile(archive, "the original content", "UTF-8");
+        long lastModified = 1400000000000L;
+        assertTrue(archive.setLastModified(lastModified));
+        PluginManifest manifest = new PluginManifest(archive, "plugin", "1.0",
+                Collections.<PluginWrapper.Dependency>emptyList(), Collections.<PluginWrapper.Dependency>emptyList(),
+                YesNoMaybe.MAYBE, VerificationLevel.digestOf(archive));
+        ExtractedPluginMetadata metadata = new ExtractedPluginMetadata("store/plugin.jpi", manifest, 0L, -1L,
+                VerificationLevel.sampleOf(archive), VerificationLevel.checksumOf(archive));
+        for (VerificationLevel level : VerificationLevel.values()) {
+            assertTrue(level.name(), level.matches(metadata, archive));
+        }
+
+        FileUtils.writeStringToFile(archive, "the modified content", "UTF-8");
+        assertTrue(archive.setLastModified(lastModified));
+
+        assertTrue(VerificationLevel.METADATA.matches(metadata, archive));
+        assertFalse(VerificationLevel.SAMPLED.matches(metadata, archive));
+        assertFalse(VerificationLevel.CHECKSUM.matches(metadata, archive));
+        assertFalse(VerificationLevel.DIGEST.matches(metadata, archive));
+    }
+}